@@ -17,6 +17,7 @@ import org.eclipse.smila.processing.util.ResultCollector;
 import org.eclipse.smila.utils.service.ServiceUtils;
 
 import cubrikproject.tud.likelines.service.interfaces.LLIndexer;
+import cubrikproject.tud.likelines.service.interfaces.LLIndexer.ScheduleStatus;
 import cubrikproject.tud.likelines.webservice.Aggregate;
 import cubrikproject.tud.likelines.webservice.LikeLinesWebService;
 
@@ -49,6 +50,12 @@ public class LikeLines implements Pipelet {
 	/** config property name for forcing MCA. */
 	private static final String PARAM_FORCE_MCA = "force_mca";
 	
+	/** config property name for using the coarse-to-fine key frame search. */
+	private static final String PARAM_COARSE_TO_FINE = "coarse_to_fine";
+	
+	/** config property name for aggregating into a bounded-memory sketch. */
+	private static final String PARAM_SKETCHED = "sketched";
+	
 	/** the pipelet's configuration. */
 	private AnyMap _config;
 
@@ -97,6 +104,8 @@ public class LikeLines implements Pipelet {
 		final String outputField = paramAccessor.getRequiredParameter(PARAM_OUTPUT);
 		final String outputFramesField = paramAccessor.getRequiredParameter(PARAM_FRAMES_OUTPUT);
 		final boolean forceMCA = Boolean.parseBoolean(paramAccessor.getParameter(PARAM_FORCE_MCA, "false"));
+		final boolean coarseToFine = Boolean.parseBoolean(paramAccessor.getParameter(PARAM_COARSE_TO_FINE, "false"));
+		final boolean sketched = Boolean.parseBoolean(paramAccessor.getParameter(PARAM_SKETCHED, "false"));
 		
 		for (String id : recordIds) {
 			try {
@@ -108,8 +117,10 @@ public class LikeLines implements Pipelet {
 				
 				LikeLinesWebService server = new LikeLinesWebService(serverUrl);
 				
-				Aggregate agg = server.aggregate(videoId);
-				final double[] nKeyFrames = server.getNKeyFrames(N, agg);
+				Aggregate agg = _indexer.aggregate(server, videoId, sketched);
+				final double[] nKeyFrames = coarseToFine
+						? server.getNKeyFramesCoarseToFine(N, agg)
+						: server.getNKeyFrames(N, agg);
 				for (double d : nKeyFrames) {
 					timecodes.add(d);
 				}
@@ -123,8 +134,9 @@ public class LikeLines implements Pipelet {
 					}
 				}
 				
-				boolean contentAnalysisRequired = agg.playbacks.size() < PERFORM_MCA_THRESHOLD || forceMCA;
-				_indexer.scheduleMCA(videoId, server, contentAnalysisRequired);
+				boolean contentAnalysisRequired = agg.numPlaybacks < PERFORM_MCA_THRESHOLD || forceMCA;
+				if (_indexer.scheduleMCA(videoId, server, contentAnalysisRequired, agg.numPlaybacks) == ScheduleStatus.REJECTED)
+					_log.warn("MCA queue is full, not indexing " + videoId + " for now");
 			}
 			catch (Exception e) {
 				e.printStackTrace();
@@ -0,0 +1,384 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import cubrikproject.tud.likelines.service.interfaces.LLIndexer.ScheduleStatus;
+import cubrikproject.tud.likelines.service.interfaces.MCAJobStatus;
+import cubrikproject.tud.likelines.service.interfaces.MCAQueueStatus;
+import cubrikproject.tud.likelines.util.YouTubeDL;
+import cubrikproject.tud.likelines.webservice.LikeLinesWebService;
+
+/**
+ * Standalone bulk indexer: runs the MCA pipeline of {@link LLIndexer} for a
+ * list of videos, outside SMILA, keeping the pipeline full.
+ *
+ * The outcome of every video is appended to a progress file, so an
+ * interrupted run can be started again and continues with the videos that
+ * did not finish. Videos that were halfway are resumed from the MCA journal
+ * in the index storage. When the run ends, a throughput report is printed.
+ */
+public class BulkIndexer {
+
+	/** Interval (ms) between checks of the videos in the pipeline */
+	private static final long POLL_INTERVAL = 200;
+	/** Interval (ms) between progress reports */
+	private static final long REPORT_INTERVAL = 60000;
+	/** Videos in the pipeline per worker, by default */
+	private static final int QUEUE_PER_WORKER = 2;
+
+	/** Usage documentation when used as a CLI program */
+	private static void printUsage() {
+		System.err.println("java " + BulkIndexer.class.getCanonicalName() + " [OPTIONS] VIDEO_ID_FILE LIKELINES_SERVER");
+		System.err.println();
+		System.err.println("VIDEO_ID_FILE lists one video per line (YouTube:<id>, or just a YouTube ID).");
+		System.err.println("Options:");
+		System.err.println("  -config FILE       LLIndexer.properties to use (default: built-in defaults)");
+		System.err.println("  -key SECRET_KEY    secret key of the LikeLines server");
+		System.err.println("  -fetch N           number of FETCH workers");
+		System.err.println("  -analyze N         number of ANALYZE workers");
+		System.err.println("  -post N            number of POST workers");
+		System.err.println("  -queue N           number of videos in the pipeline (default: " + QUEUE_PER_WORKER + " per worker)");
+		System.err.println("  -progress FILE     progress file (default: VIDEO_ID_FILE.progress)");
+		System.err.println("  -retryFailed       index the videos that failed in a previous run again");
+		System.err.println("                     (once their mcaRetryFailedMinutes have passed)");
+		System.err.println("  -noContentAnalysis skip the motion analysis");
+	}
+
+	/**
+	 * Application entry-point. Indexes the videos of a given file.
+	 * @param args Arguments passed through the command line.
+	 * @throws IOException When the video list or progress file cannot be read or written
+	 * @throws InterruptedException When interrupted
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		final Properties props = new Properties();
+		String key = null;
+		String progressPath = null;
+		Integer queueSize = null;
+		boolean retryFailed = false;
+		boolean contentAnalysisRequired = true;
+		final List<String> positional = new ArrayList<String>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				final String arg = args[i];
+				if (arg.equals("-config"))
+					load(props, new File(args[++i]));
+				else if (arg.equals("-key"))
+					key = args[++i];
+				else if (arg.equals("-fetch"))
+					props.setProperty("mcaFetchWorkers", positive(args[++i]));
+				else if (arg.equals("-analyze"))
+					props.setProperty("mcaAnalyzeWorkers", positive(args[++i]));
+				else if (arg.equals("-post"))
+					props.setProperty("mcaPostWorkers", positive(args[++i]));
+				else if (arg.equals("-queue"))
+					queueSize = Integer.valueOf(positive(args[++i]));
+				else if (arg.equals("-progress"))
+					progressPath = args[++i];
+				else if (arg.equals("-retryFailed"))
+					retryFailed = true;
+				else if (arg.equals("-noContentAnalysis"))
+					contentAnalysisRequired = false;
+				else if (arg.startsWith("-"))
+					throw new IllegalArgumentException("Unknown option: " + arg);
+				else
+					positional.add(arg);
+			}
+			if (positional.size() != 2)
+				throw new IllegalArgumentException("Expected VIDEO_ID_FILE and LIKELINES_SERVER");
+		} catch (RuntimeException e) {
+			// also ArrayIndexOutOfBoundsException for an option without value
+			System.err.println("ERR: " + e.getMessage());
+			printUsage();
+			System.exit(-1);
+		}
+
+		final File videoIdFile = new File(positional.get(0));
+		final LikeLinesWebService server = new LikeLinesWebService(positional.get(1));
+		final File progressFile = new File(progressPath != null ? progressPath : videoIdFile.getPath() + ".progress");
+
+		if (key != null)
+			props.setProperty("secretKeys", key + " " + server.serverUrl);
+		if (queueSize == null && !props.containsKey("mcaQueueSize"))
+			queueSize = QUEUE_PER_WORKER * (workers(props, "mcaFetchWorkers", 4)
+					+ workers(props, "mcaAnalyzeWorkers", Runtime.getRuntime().availableProcessors())
+					+ workers(props, "mcaPostWorkers", 2));
+		if (queueSize != null)
+			props.setProperty("mcaQueueSize", queueSize.toString());
+		// every video is requested once, so its demand must not fade while it waits
+		if (!props.containsKey("mcaDemandHalfLifeMinutes"))
+			props.setProperty("mcaDemandHalfLifeMinutes", String.valueOf(Integer.MAX_VALUE / 60000));
+
+		final Map<String, MCAJobStatus.Phase> previous = readProgress(progressFile);
+		final Set<String> videoIds = new LinkedHashSet<String>();
+		int skipped = 0;
+		for (String videoId : readVideoIds(videoIdFile)) {
+			final MCAJobStatus.Phase phase = previous.get(videoId);
+			if (phase == MCAJobStatus.Phase.FINISHED || (phase == MCAJobStatus.Phase.FAILED && !retryFailed))
+				skipped++;
+			else
+				videoIds.add(videoId);
+		}
+		System.err.println(">>> BulkIndexer: " + videoIds.size() + " videos to index, "
+				+ skipped + " skipped since they ended in a previous run");
+
+		final BulkIndexer bulk = new BulkIndexer(new LLIndexer(props), server, contentAnalysisRequired, progressFile);
+		try {
+			bulk.run(videoIds);
+		} finally {
+			bulk.close();
+		}
+		bulk.printReport();
+	}
+
+	private final LLIndexer indexer;
+	private final LikeLinesWebService server;
+	private final boolean contentAnalysisRequired;
+	private final Writer progress;
+
+	/** Number of videos per way they ended */
+	private final Map<String, Integer> outcomes = new HashMap<String, Integer>();
+
+	private final long startTime = System.currentTimeMillis();
+	private final long startBytes = YouTubeDL.bytesDownloaded();
+	private final double startCpu = cpuSeconds();
+
+	BulkIndexer(LLIndexer indexer, LikeLinesWebService server, boolean contentAnalysisRequired, File progressFile) throws IOException {
+		this.indexer = indexer;
+		this.server = server;
+		this.contentAnalysisRequired = contentAnalysisRequired;
+		this.progress = new OutputStreamWriter(new FileOutputStream(progressFile, true), "UTF-8");
+	}
+
+	/**
+	 * Schedules the videos as fast as the pipeline accepts them and waits
+	 * until all of them have ended.
+	 *
+	 * @param videoIds The videos
+	 */
+	void run(Set<String> videoIds) throws IOException, InterruptedException {
+		final Iterator<String> unscheduled = videoIds.iterator();
+		final Set<String> inPipeline = new LinkedHashSet<String>();
+		String next = unscheduled.hasNext() ? unscheduled.next() : null;
+		long nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+
+		while (next != null || !inPipeline.isEmpty()) {
+			while (next != null) {
+				final ScheduleStatus status = indexer.scheduleMCA(next, server, contentAnalysisRequired, 0);
+				if (status == ScheduleStatus.REJECTED)
+					break; // the pipeline is full
+
+				if (status == ScheduleStatus.SCHEDULED) {
+					inPipeline.add(next);
+				}
+				else {
+					// being indexed (e.g., resumed from the journal) or done before
+					final MCAJobStatus jobStatus = indexer.getMCAStatus(next);
+					if (jobStatus != null && jobStatus.isActive())
+						inPipeline.add(next);
+					else
+						ended(next, jobStatus);
+				}
+				next = unscheduled.hasNext() ? unscheduled.next() : null;
+			}
+
+			for (Iterator<String> it = inPipeline.iterator(); it.hasNext(); ) {
+				final String videoId = it.next();
+				final MCAJobStatus jobStatus = indexer.getMCAStatus(videoId);
+				if (jobStatus == null || !jobStatus.isActive()) {
+					ended(videoId, jobStatus);
+					it.remove();
+				}
+			}
+
+			if (System.currentTimeMillis() >= nextReport) {
+				System.err.println(">>> BulkIndexer: " + summary() + "; " + indexer.getMCAQueueStatus());
+				nextReport += REPORT_INTERVAL;
+			}
+			Thread.sleep(POLL_INTERVAL);
+		}
+	}
+
+	/**
+	 * Records the outcome of a video in the progress file.
+	 *
+	 * @param status The final status of the video, or null if unknown
+	 *            (e.g., indexed by another node)
+	 */
+	private void ended(String videoId, MCAJobStatus status) throws IOException {
+		final String outcome = (status == null) ? "SKIPPED" : status.phase.name();
+		final Integer count = outcomes.get(outcome);
+		outcomes.put(outcome, (count == null) ? 1 : count + 1);
+
+		if (status != null && status.lastError != null)
+			System.err.println(">>> BulkIndexer: " + status);
+		progress.write(videoId + "\t" + outcome + "\n");
+		progress.flush();
+	}
+
+	void close() throws IOException {
+		indexer.deactivate();
+		progress.close();
+	}
+
+	private int count(MCAJobStatus.Phase phase) {
+		final Integer count = outcomes.get(phase.name());
+		return (count == null) ? 0 : count;
+	}
+
+	private String summary() {
+		final long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+		return String.format(Locale.US, "%d finished, %d failed, %.1f videos/hour",
+				count(MCAJobStatus.Phase.FINISHED), count(MCAJobStatus.Phase.FAILED),
+				count(MCAJobStatus.Phase.FINISHED) * 3600000.0 / elapsed);
+	}
+
+	/**
+	 * Prints the throughput of the run. CPU time includes the external tools
+	 * (ffmpeg, motionActivity) where the platform reports it (Linux).
+	 */
+	void printReport() {
+		final long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+		final int finished = count(MCAJobStatus.Phase.FINISHED);
+		final long bytes = YouTubeDL.bytesDownloaded() - startBytes;
+		final double cpu = cpuSeconds() - startCpu;
+
+		System.out.println("Bulk indexing report");
+		System.out.println(String.format(Locale.US, " -elapsed: %.1f s", elapsed / 1000.0));
+		System.out.println(" -outcomes: " + outcomes);
+		System.out.println(String.format(Locale.US, " -throughput: %.1f videos/hour", finished * 3600000.0 / elapsed));
+		System.out.println(String.format(Locale.US, " -downloaded: %d bytes (%.1f MB/s)", bytes, bytes / 1000.0 / elapsed));
+		if (startCpu >= 0)
+			System.out.println(String.format(Locale.US, " -CPU: %.1f s%s", cpu,
+					(finished > 0) ? String.format(Locale.US, " (%.1f s per finished video)", cpu / finished) : ""));
+		for (MCAQueueStatus.StageStatus stage : indexer.getMCAQueueStatus().stages)
+			System.out.println(" -" + stage.stage + ": " + stage.workers + " workers, " + stage.completed + " runs, average "
+					+ stage.averageWaitMillis + " ms queued, " + stage.averageRunMillis + " ms running");
+	}
+
+	/**
+	 * @return The CPU time (s) of this process and the child processes it
+	 *         waited for, of this process only if unavailable, or -1 if unknown
+	 */
+	static double cpuSeconds() {
+		final File stat = new File("/proc/self/stat");
+		if (stat.exists()) {
+			try {
+				final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stat), "US-ASCII"));
+				final String line;
+				try {
+					line = reader.readLine();
+				} finally {
+					reader.close();
+				}
+				// fields after the command name: state, ..., utime (12th), stime, cutime, cstime
+				final String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+				long ticks = 0;
+				for (int i = 11; i <= 14; i++)
+					ticks += Long.parseLong(fields[i]);
+				return ticks / 100.0; // USER_HZ
+			} catch (Exception e) {
+				// fall back on the JVM's own CPU time
+			}
+		}
+
+		try {
+			final Object os = ManagementFactory.getOperatingSystemMXBean();
+			final Method getProcessCpuTime = Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getProcessCpuTime");
+			return ((Long) getProcessCpuTime.invoke(os)) / 1e9;
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Helper method to read the video IDs, ignoring blank lines, comments and
+	 * repeated IDs. Plain YouTube IDs get the "YouTube:" prefix.
+	 */
+	private static Set<String> readVideoIds(File file) throws IOException {
+		final Set<String> res = new LinkedHashSet<String>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				res.add(YouTubeDL.validateYouTubeID(line) ? "YouTube:" + line : line);
+			}
+		} finally {
+			reader.close();
+		}
+		return res;
+	}
+
+	/**
+	 * Helper method to read the last outcome per video of previous runs.
+	 */
+	private static Map<String, MCAJobStatus.Phase> readProgress(File file) throws IOException {
+		final Map<String, MCAJobStatus.Phase> res = new HashMap<String, MCAJobStatus.Phase>();
+		if (!file.exists())
+			return res;
+
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] fields = line.split("\t");
+				if (fields.length != 2)
+					continue; // e.g., a partial last line
+				try {
+					res.put(fields[0], MCAJobStatus.Phase.valueOf(fields[1]));
+				} catch (IllegalArgumentException e) {
+					res.remove(fields[0]); // e.g., SKIPPED
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return res;
+	}
+
+	private static void load(Properties props, File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int workers(Properties props, String name, int defaultValue) {
+		try {
+			return Integer.parseInt(props.getProperty(name, "").trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static String positive(String value) {
+		if (Integer.parseInt(value) <= 0)
+			throw new IllegalArgumentException("Expected a positive number: " + value);
+		return value;
+	}
+}
@@ -0,0 +1,168 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cubrikproject.tud.likelines.service.interfaces.FrameCacheStatus;
+
+/**
+ * In-memory LRU cache of base64 encoded key frames, keyed by video and
+ * second, and bounded by a byte budget.
+ *
+ * Each frame remembers the file it was read from (its own file or the
+ * video's storyboard) with its size and modification time. A hit
+ * looks at the file at most once per validation interval, so hot frames are
+ * served without touching the disk; a frame whose file changed is dropped.
+ * Frames (re-)extracted by the indexer are invalidated explicitly.
+ */
+class FrameCache {
+
+	/** Default budget (bytes) of the cache */
+	static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	/** Interval (ms) after which a hit checks whether the frame's file changed */
+	private static final long VALIDATE_INTERVAL = 1000;
+
+	/** Approximate per-frame overhead (bytes) of the key and entry objects */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private static class Frame {
+		final String encoded;
+		final File file;
+		final long lastModified;
+		final long length;
+		/** Time of the last check of the file */
+		long validatedAt;
+
+		Frame(String encoded, File file, long lastModified, long length) {
+			this.encoded = encoded;
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.validatedAt = System.currentTimeMillis();
+		}
+
+		long size() {
+			// strings hold UTF-16 chars: two bytes per character
+			return 2L * encoded.length() + ENTRY_OVERHEAD;
+		}
+	}
+
+	private final long budget;
+
+	/** Frames in access order, guarded by this */
+	private final LinkedHashMap<String, Frame> frames = new LinkedHashMap<String, Frame>(16, 0.75f, true);
+	private long bytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/**
+	 * @param budget Maximum size (bytes) of the cached frames
+	 */
+	FrameCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns a cached frame, unless its file changed.
+	 *
+	 * @param videoId The video ID
+	 * @param second The second of the frame
+	 * @return The base64 encoded frame, or null on a miss
+	 */
+	String get(String videoId, int second) {
+		final String key = key(videoId, second);
+		final Frame frame;
+		synchronized (this) {
+			frame = frames.get(key);
+			if (frame == null) {
+				misses++;
+				return null;
+			}
+			if (System.currentTimeMillis() - frame.validatedAt <= VALIDATE_INTERVAL) {
+				hits++;
+				return frame.encoded;
+			}
+		}
+
+		// outside the lock, so a slow disk does not block other hits
+		final boolean unchanged = frame.file.lastModified() == frame.lastModified && frame.file.length() == frame.length;
+
+		synchronized (this) {
+			if (unchanged) {
+				frame.validatedAt = System.currentTimeMillis();
+				hits++;
+				return frame.encoded;
+			}
+			if (frames.get(key) == frame) {
+				remove(key);
+				invalidations++;
+			}
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Caches a frame, evicting the least recently used frames if the budget
+	 * is exceeded. The size and modification time of the file must be taken
+	 * before it was read, so a change while reading is noticed.
+	 *
+	 * @param videoId The video ID
+	 * @param second The second of the frame
+	 * @param encoded The base64 encoded frame
+	 * @param file The file the frame was read from
+	 * @param lastModified The modification time of the file
+	 * @param length The size of the file
+	 */
+	synchronized void put(String videoId, int second, String encoded, File file, long lastModified, long length) {
+		final Frame frame = new Frame(encoded, file, lastModified, length);
+		if (frame.size() > budget)
+			return;
+
+		final String key = key(videoId, second);
+		remove(key);
+		frames.put(key, frame);
+		bytes += frame.size();
+
+		for (Iterator<Frame> it = frames.values().iterator(); bytes > budget && it.hasNext(); ) {
+			bytes -= it.next().size();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Drops a frame, e.g., because its file is about to be written.
+	 */
+	synchronized void invalidate(String videoId, int second) {
+		if (remove(key(videoId, second)))
+			invalidations++;
+	}
+
+	synchronized FrameCacheStatus status() {
+		return new FrameCacheStatus(hits, misses, evictions, invalidations, frames.size(), bytes, budget);
+	}
+
+	private boolean remove(String key) {
+		final Frame old = frames.remove(key);
+		if (old == null)
+			return false;
+		bytes -= old.size();
+		return true;
+	}
+
+	private static String key(String videoId, int second) {
+		return videoId + "@" + second;
+	}
+
+	@Override
+	public String toString() {
+		return status().toString();
+	}
+}
@@ -1,10 +1,15 @@
 package cubrikproject.tud.likelines.service.impl;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 /**
  * The FrameExtractor class extracts a frame (max: 480p) 
@@ -15,6 +20,12 @@ import java.util.List;
  *   ACCURATE:  ffmpeg -y -i SRC -ss OFFSET -frames:v 1 -vf scale=-1:480 DST
  *   MIXED:     ffmpeg -y -ss OFFSET1 -i SRC -ss OFFSET2 -frames:v 1 -vf scale=-1:480 DST 
  * 
+ * Several frames can be extracted by a single process, which opens the
+ * video once per cluster of nearby timestamps and writes one output per
+ * timestamp:
+ *   BATCH:     ffmpeg -y -ss OFFSET1 -i SRC [-ss ... -i SRC]
+ *                    -map 0:v:0 -ss OFFSET2 -frames:v 1 -vf scale=-1:480 DST1 [-map ...]
+ * 
  * @author R. Vliegendhart
  */
 public class FrameExtractor {
@@ -33,12 +44,35 @@ public class FrameExtractor {
 	/** Jump window for FAST_ACCURATE mode */
 	private static int FAST_ACCURATE_OFFSET2 = 30;
 	
+	/** Default time budget (ms) of a frame extraction */
+	public static final long DEFAULT_TIMEOUT = 60 * 1000;
+	
+	/** Maximum number of frames extracted by a single process */
+	private static final int MAX_BATCH_SIZE = 50;
+	
+	/** Time budget (ms) of a single frame extraction */
+	private final long timeout;
+	
+	/** supervises the ffmpeg processes */
+	private final ProcessSupervisor supervisor;
+	
 	/**
 	 * Constructs a FrameExtractor object.
 	 * @param ffmpegPath Path to ffmpeg
 	 */
 	public FrameExtractor(String ffmpegPath) {
+		this(ffmpegPath, DEFAULT_TIMEOUT);
+	}
+	
+	/**
+	 * Constructs a FrameExtractor object.
+	 * @param ffmpegPath Path to ffmpeg
+	 * @param timeout Time budget (ms) after which an extraction is killed
+	 */
+	public FrameExtractor(String ffmpegPath, long timeout) {
 		this.ffmpegPath = ffmpegPath;
+		this.timeout = timeout;
+		this.supervisor = new ProcessSupervisor("ffmpeg (frame)", timeout);
 	}
 	
 	/**
@@ -103,15 +137,13 @@ public class FrameExtractor {
 	 * @param method The extraction method to apply
 	 * @return The exit value of the process
 	 * @throws IllegalArgumentException 
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * @throws IOException When the process cannot be started or times out
+	 * @throws InterruptedException When interrupted (the process is killed)
 	 */
 	public int extractAndWait(String source, double timestamp, String destination, ExtractionMethod method)
 			throws IOException, InterruptedException {
 		final Process proc = extract(source, timestamp, destination, method);
-		BufferedReader br = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-		while (br.readLine() != null);
-		return proc.waitFor();
+		return supervisor.waitFor(proc, false).exitValueOrThrow();
 	}
 	
 	/**
@@ -124,14 +156,194 @@ public class FrameExtractor {
 	 * @param method The extraction method to apply
 	 * @return The exit value of the process
 	 * @throws IllegalArgumentException 
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * @throws IOException When the process cannot be started or times out
+	 * @throws InterruptedException When interrupted (the process is killed)
 	 */
 	public int extractAndWait(String source, double timestamp, String destination)
 			throws IOException, InterruptedException {
-		final Process proc = extract(source, timestamp, destination, ExtractionMethod.FAST_ACCURATE);
-		BufferedReader br = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-		while (br.readLine() != null);
-		return proc.waitFor();
+		return extractAndWait(source, timestamp, destination, ExtractionMethod.FAST_ACCURATE);
+	}
+	
+	/**
+	 * Extracts frames from a video at given timestamps (blocking), using
+	 * the fast and accurate method. All frames are extracted by a single
+	 * process (per {@value #MAX_BATCH_SIZE} frames), which decodes runs of
+	 * nearby timestamps in one pass. Frames the process did not produce are
+	 * extracted one by one.
+	 * 
+	 * If several timestamps share a destination, only the first one is
+	 * extracted.
+	 * 
+	 * @param source The video to extract the frames from
+	 * @param timestamps The timestamps in seconds (positive)
+	 * @param destinations The location to store each frame
+	 * @return For each timestamp, whether its destination holds a frame
+	 * @throws IllegalArgumentException 
+	 * @throws InterruptedException When interrupted (the process is killed)
+	 */
+	public boolean[] extractAllAndWait(String source, final double[] timestamps, String[] destinations)
+			throws InterruptedException {
+		if (timestamps.length != destinations.length)
+			throw new IllegalArgumentException("Expected a destination per timestamp");
+		for (double timestamp : timestamps)
+			if (timestamp < 0)
+				throw new IllegalArgumentException("Timestamp needs to be positive");
+		
+		// the first timestamp per destination, in order of time
+		final List<Integer> order = new ArrayList<Integer>();
+		final Set<String> seen = new HashSet<String>();
+		for (int i = 0; i < timestamps.length; i++)
+			if (seen.add(destinations[i]))
+				order.add(i);
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(timestamps[a], timestamps[b]);
+			}
+		});
+		
+		for (int from = 0; from < order.size(); from += MAX_BATCH_SIZE) {
+			final List<Integer> batch = order.subList(from, Math.min(from + MAX_BATCH_SIZE, order.size()));
+			final long start = System.currentTimeMillis();
+			
+			String failure = null;
+			try {
+				for (int i : batch)
+					new File(destinations[i]).delete();
+				final Process proc = extractBatch(source, timestamps, destinations, batch);
+				final int exitValue = supervisor.waitFor(proc, false, timeout * batch.size()).exitValueOrThrow();
+				if (exitValue != 0)
+					failure = "exit value " + exitValue;
+			} catch (IOException e) {
+				failure = e.toString();
+			}
+			
+			final List<Integer> missing = new ArrayList<Integer>();
+			for (int i : batch)
+				if (!hasFrame(destinations[i]))
+					missing.add(i);
+			System.err.println(String.format(Locale.US, ">>> FrameExtractor: extracted %d/%d frames in one process in %d ms%s",
+					batch.size() - missing.size(), batch.size(), System.currentTimeMillis() - start,
+					(failure == null) ? "" : " (" + failure + ")"));
+			
+			// e.g., a timestamp beyond the end of the video, or an ffmpeg that does not support the batch
+			for (int i : missing) {
+				try {
+					extractAndWait(source, timestamps[i], destinations[i]);
+				} catch (IOException e) {
+					System.err.println(">>> FrameExtractor: extraction failed: " + destinations[i] + ": " + e);
+				}
+			}
+		}
+		
+		final boolean[] res = new boolean[timestamps.length];
+		for (int i = 0; i < res.length; i++)
+			res[i] = hasFrame(destinations[i]);
+		return res;
+	}
+	
+	/**
+	 * Starts a process extracting a batch of frames. Timestamps are grouped
+	 * into clusters in which each timestamp is at most the jump window after
+	 * the previous one. Every cluster becomes an input that is seeked to the
+	 * jump window before its first timestamp and decoded once; each timestamp
+	 * becomes an output seeked within its cluster.
+	 * 
+	 * @param batch Indices of the frames, in order of time
+	 * @return A Process handle
+	 */
+	private Process extractBatch(String source, double[] timestamps, String[] destinations, List<Integer> batch)
+			throws IOException {
+		final List<String> inputs = new ArrayList<String>();
+		final List<String> outputs = new ArrayList<String>();
+		int input = -1;
+		double inputStart = 0;
+		double previous = Double.NEGATIVE_INFINITY;
+		
+		for (int i : batch) {
+			final double timestamp = timestamps[i];
+			if (timestamp - previous > FAST_ACCURATE_OFFSET2) {
+				input++;
+				inputStart = Math.max(timestamp - FAST_ACCURATE_OFFSET2, 0);
+				if (inputStart > 0) {
+					inputs.add("-ss");
+					inputs.add("" + inputStart);
+				}
+				inputs.add("-i");
+				inputs.add(source);
+			}
+			previous = timestamp;
+			
+			outputs.add("-map");
+			outputs.add(input + ":v:0");
+			if (timestamp - inputStart > 0) {
+				outputs.add("-ss");
+				outputs.add("" + (timestamp - inputStart));
+			}
+			outputs.add("-frames:v");
+			outputs.add("1");
+			outputs.add("-vf");
+			outputs.add("scale=-1:480");
+			outputs.add(destinations[i]);
+		}
+		
+		final List<String> arguments = new ArrayList<String>();
+		arguments.add(ffmpegPath);
+		arguments.add("-y");
+		arguments.addAll(inputs);
+		arguments.addAll(outputs);
+		
+		final ProcessBuilder pb = new ProcessBuilder(arguments.toArray(new String[arguments.size()]));
+		return pb.start();
+	}
+	
+	private static boolean hasFrame(String destination) {
+		return new File(destination).length() > 0;
+	}
+	
+	/**
+	 * Application entry-point. Compares the time taken to extract frames one
+	 * by one and in a single process.
+	 * 
+	 * @param args FFMPEG_PATH VIDEO TIMESTAMP...
+	 * @throws Exception 
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("java " + FrameExtractor.class.getCanonicalName() + " FFMPEG_PATH VIDEO TIMESTAMP...");
+			System.exit(-1);
+		}
+		
+		final FrameExtractor extractor = new FrameExtractor(args[0]);
+		final String source = args[1];
+		final double[] timestamps = new double[args.length - 2];
+		for (int i = 0; i < timestamps.length; i++)
+			timestamps[i] = Double.parseDouble(args[i + 2]);
+		
+		final File dir = new File(System.getProperty("java.io.tmpdir"), "FrameExtractor-" + System.currentTimeMillis());
+		dir.mkdirs();
+		final String[] single = new String[timestamps.length];
+		final String[] batched = new String[timestamps.length];
+		for (int i = 0; i < timestamps.length; i++) {
+			single[i] = new File(dir, String.format(Locale.US, "single_%03d.jpg", i)).getPath();
+			batched[i] = new File(dir, String.format(Locale.US, "batch_%03d.jpg", i)).getPath();
+		}
+		
+		long start = System.currentTimeMillis();
+		int extracted = 0;
+		for (int i = 0; i < timestamps.length; i++)
+			if (extractor.extractAndWait(source, timestamps[i], single[i]) == 0 && hasFrame(single[i]))
+				extracted++;
+		final long singleTime = System.currentTimeMillis() - start;
+		System.out.println("One process per frame: " + extracted + " frames in " + singleTime + " ms");
+		
+		start = System.currentTimeMillis();
+		extracted = 0;
+		for (boolean ok : extractor.extractAllAndWait(source, timestamps, batched))
+			if (ok)
+				extracted++;
+		final long batchTime = System.currentTimeMillis() - start;
+		System.out.println("Single process:        " + extracted + " frames in " + batchTime + " ms");
+		System.out.println("Frames written to " + dir + ": " + Arrays.toString(dir.list()));
 	}
 }
@@ -3,25 +3,55 @@ package cubrikproject.tud.likelines.service.impl;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cubrikproject.tud.likelines.service.activator.Activator;
+import cubrikproject.tud.likelines.service.impl.MCAJournal.State;
+import cubrikproject.tud.likelines.service.interfaces.FrameCacheStatus;
+import cubrikproject.tud.likelines.service.interfaces.MCAJobStatus;
+import cubrikproject.tud.likelines.service.interfaces.MCAJobStatus.Phase;
+import cubrikproject.tud.likelines.service.interfaces.MCAQueueStatus;
 import cubrikproject.tud.likelines.util.Ajax;
+import cubrikproject.tud.likelines.util.Threads;
 import cubrikproject.tud.likelines.util.YouTubeComment;
 import cubrikproject.tud.likelines.util.YouTubeComment.TimePoint;
 import cubrikproject.tud.likelines.util.YouTubeDL;
 import cubrikproject.tud.likelines.util.YouTubeDL.YouTubeStream;
+import cubrikproject.tud.likelines.webservice.Aggregate;
+import cubrikproject.tud.likelines.webservice.AggregateCache;
 import cubrikproject.tud.likelines.webservice.LikeLinesWebService;
 
 import org.apache.commons.codec.binary.Base64;
@@ -29,7 +59,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.eclipse.smila.utils.config.ConfigUtils;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 /**
  * The service responsible for launching indexing processes in the background.
@@ -39,7 +73,7 @@ import com.google.gson.JsonObject;
 public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces.LLIndexer {
 	
 	private final static Log _log = LogFactory.getLog(LLIndexer.class);
-	private final String propertiesFile = getClass().getSimpleName() + ".properties";
+	private final static String PROPERTIES_FILE = LLIndexer.class.getSimpleName() + ".properties";
 	private final Properties props;
 	
 	private final String ffmpegPath;
@@ -48,18 +82,93 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 	
 	private final String DEFAULT_FFMPEG = "ffmpeg";
 	private final String DEFAULT_MOTIONACTIVITY = "motionActivity";
-	final Map<String, String> secretKeys;
+	private final int DEFAULT_MCA_FETCH_WORKERS = 4;
+	private final int DEFAULT_MCA_ANALYZE_WORKERS = Runtime.getRuntime().availableProcessors();
+	private final int DEFAULT_MCA_POST_WORKERS = 2;
+	private final int DEFAULT_MCA_QUEUE_SIZE = 100;
+	private final int DEFAULT_MCA_JOURNAL_RETENTION_HOURS = 7 * 24;
+	private final int DEFAULT_MCA_RETRY_FAILED_MINUTES = 60;
+	private final int DEFAULT_MCA_DEMAND_HALF_LIFE_MINUTES = 10;
+	private final int DEFAULT_MCA_AGING_MINUTES = 5;
+	private final int DEFAULT_MCA_LEASE_SECONDS = 120;
+	
+	/** Demand below which a queued task that has not started yet is cancelled */
+	private static final double CANCEL_DEMAND = 0.1;
+	/** Video duration (in seconds) that doubles the expected analysis cost */
+	private static final double COST_UNIT_SECONDS = 600;
+	/** Number of ended MCA tasks whose status is kept in memory */
+	private static final int RECENT_STATUSES = 1000;
+	
+	final SecretKeys secretKeys;
 	
 	Transcoder transcoder;
 	FrameExtractor frameExtractor;
+	/** Builds the storyboards of indexed videos (null if disabled) */
+	Storyboard storyboard;
 	MotionActivityAnalyzer motionActivityAnalyzer;
+	AggregateCache aggregateCache;
+	FrameCache frameCache;
+	MCAJournal mcaJournal;
+	MCALeases mcaLeases;
+	private final String nodeId;
+	
+	/** Tasks currently in the MCA pipeline, by video */
+	private final ConcurrentMap<String, MCATask> activeTasks = new ConcurrentHashMap<String, MCATask>();
+	private final Map<Stage, ThreadPoolExecutor> stageExecutors = new EnumMap<Stage, ThreadPoolExecutor>(Stage.class);
+	private final Map<Stage, List<MCATask>> pendingTasks = new EnumMap<Stage, List<MCATask>>(Stage.class);
+	private final Map<Stage, StageStats> stageStats = new EnumMap<Stage, StageStats>(Stage.class);
+	private ThreadPoolExecutor metadataExecutor;
+	/** Extracts the key frames of indexed videos in the background (null if disabled) */
+	private ThreadPoolExecutor keyFrameExecutor;
+	
+	/** Where {@link #extractFrames(String, double[])} takes frames from that were not extracted before */
+	private enum KeyFrameSource {
+		/** The storyboard, or else the video */
+		STORYBOARD,
+		/** Only the storyboard: requests never start ffmpeg */
+		STORYBOARD_ONLY,
+		/** The video, or else the storyboard once the video is gone */
+		PRECISE
+	}
+	private final KeyFrameSource keyFrameSource;
+	/** Number of key frames to extract after indexing (the pipelet's n), or 0 not to */
+	private final int keyFramePrefetchN;
+	/** Whether the key frames are extracted from a sketched aggregate, like the pipelet's */
+	private final boolean keyFramePrefetchSketched;
+	private final int mcaQueueSize;
+	private final Semaphore mcaSlots;
+	
+	/** Statuses of the tasks that left the pipeline most recently, by video */
+	private final Map<String, MCAJobStatus> recentStatuses = new LinkedHashMap<String, MCAJobStatus>() {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MCAJobStatus> eldest) {
+			return size() > RECENT_STATUSES;
+		}
+	};
 	
-	private final Set<String> indexedVideos = new HashSet<String>();
+	// outcomes since activation
+	private final Map<ScheduleStatus, AtomicLong> scheduleCounts = new EnumMap<ScheduleStatus, AtomicLong>(ScheduleStatus.class);
+	private final Map<Phase, AtomicLong> endCounts = new EnumMap<Phase, AtomicLong>(Phase.class);
+	private final MCADemand mcaDemand;
+	private final long agingPeriod;
 	
 	public LLIndexer() {
-		System.out.println(">>> LLIndexer: Reading (configuration/)" + Activator.BUNDLE_NAME + "/" + propertiesFile);
+		this(loadProperties());
+	}
+	
+	/**
+	 * Constructs an indexer configured by given properties instead of the
+	 * bundle's configuration, e.g., to run it outside SMILA.
+	 * 
+	 * @param props The properties, or null to use the defaults
+	 */
+	public LLIndexer(Properties props) {
+		this.props = props;
 		
-		props = loadProperties();
+		if ("true".equalsIgnoreCase(String.valueOf(getProperty("virtualThreads")).trim()))
+			Threads.enableVirtualThreads();
 		
 		String ffmpegPathFromProps = nullIfMissing( getProperty("ffmpegPath") );
 		String motionActivityPathFromProps = nullIfMissing( getProperty("motionActivityPath") );
@@ -70,20 +179,62 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 		motionActivityPath = (motionActivityPathFromProps == null) ?
 				findOnPath(DEFAULT_MOTIONACTIVITY) : motionActivityPathFromProps;	
 		
-		secretKeys = getSecretKeys();
-		testSecretKeys(secretKeys);
-		
-		transcoder = (ffmpegPath == null) ? null : new Transcoder(ffmpegPath);
-		frameExtractor = (ffmpegPath == null) ? null : new FrameExtractor(ffmpegPath);
-		motionActivityAnalyzer = (motionActivityPath == null) ? null : new MotionActivityAnalyzer(motionActivityPath);
 		indexStoragePath = prepareIndexStorage();
+		// validated in the background, so an unreachable server does not delay the activation
+		secretKeys = new SecretKeys(getSecretKeys(), new File(indexStoragePath, "secret-keys.cache"),
+				getIntProperty("secretKeyCacheHours", (int) (SecretKeys.DEFAULT_CACHE_TTL / 3600000)) * 3600000L);
+		
+		transcoder = (ffmpegPath == null) ? null : new Transcoder(ffmpegPath,
+				getTimeoutProperty("transcodeTimeoutSeconds", Transcoder.DEFAULT_TIMEOUT));
+		frameExtractor = (ffmpegPath == null) ? null : new FrameExtractor(ffmpegPath,
+				getTimeoutProperty("frameExtractTimeoutSeconds", FrameExtractor.DEFAULT_TIMEOUT));
+		storyboard = (ffmpegPath == null || "false".equalsIgnoreCase(String.valueOf(getProperty("storyboard")).trim())) ? null
+				: new Storyboard(ffmpegPath,
+						getIntProperty("storyboardIntervalSeconds", (int) Storyboard.DEFAULT_INTERVAL),
+						getIntProperty("storyboardHeight", Storyboard.DEFAULT_HEIGHT),
+						getIntProperty("storyboardQuality", Storyboard.DEFAULT_QUALITY),
+						getTimeoutProperty("storyboardTimeoutSeconds", Storyboard.DEFAULT_TIMEOUT));
+		keyFrameSource = getKeyFrameSource();
+		motionActivityAnalyzer = (motionActivityPath == null) ? null : new MotionActivityAnalyzer(motionActivityPath,
+				getTimeoutProperty("motionActivityTimeoutSeconds", MotionActivityAnalyzer.DEFAULT_TIMEOUT));
+		aggregateCache = new AggregateCache(new File(indexStoragePath, "aggregates"), getRevalidateAfter());
+		frameCache = new FrameCache(getIntProperty("frameCacheMegabytes",
+				(int) (FrameCache.DEFAULT_BUDGET / (1024 * 1024))) * 1024L * 1024);
+		mcaQueueSize = getIntProperty("mcaQueueSize", DEFAULT_MCA_QUEUE_SIZE);
+		mcaSlots = new Semaphore(mcaQueueSize);
+		keyFramePrefetchN = getIntProperty("keyFramePrefetchN", 0);
+		keyFramePrefetchSketched = "true".equalsIgnoreCase(String.valueOf(getProperty("keyFramePrefetchSketched")).trim());
+		createMCAExecutors();
+		for (ScheduleStatus status : ScheduleStatus.values())
+			scheduleCounts.put(status, new AtomicLong());
+		for (Phase phase : Phase.values())
+			endCounts.put(phase, new AtomicLong());
+		mcaDemand = new MCADemand(getIntProperty("mcaDemandHalfLifeMinutes", DEFAULT_MCA_DEMAND_HALF_LIFE_MINUTES) * 60000L);
+		agingPeriod = getIntProperty("mcaAgingMinutes", DEFAULT_MCA_AGING_MINUTES) * 60000L;
+		nodeId = getNodeId();
+		mcaLeases = new MCALeases(new File(indexStoragePath, "leases"), nodeId,
+				getIntProperty("mcaLeaseSeconds", DEFAULT_MCA_LEASE_SECONDS) * 1000L, getJournalRetention(),
+				new MCALeases.Listener() {
+					@Override
+					public void onLeaseLost(String videoId) {
+						cancelLostLease(videoId);
+					}
+				});
+		mcaJournal = openMCAJournal();
 		
 		if (_log.isInfoEnabled()) {
 			_log.info("LLIndexer created using following setting");
 			_log.info(" -ffmpegPath=" + ffmpegPath);
 			_log.info(" -motionActivityPath=" + motionActivityPath);
+			_log.info(" -nodeId=" + nodeId);
+			_log.info(" -storyboard=" + (storyboard != null) + ", keyFrameSource=" + keyFrameSource);
+			_log.info(" -virtualThreads=" + Threads.usesVirtualThreads());
+			for (Entry<Stage, ThreadPoolExecutor> entry : stageExecutors.entrySet())
+				_log.info(" -" + entry.getKey() + " workers=" + entry.getValue().getCorePoolSize());
+			_log.info(" -mcaQueueSize=" + mcaQueueSize);
 		}
-
+		
+		resumeMCATasks();
 	}
 	
 	private String prepareIndexStorage() {
@@ -99,16 +250,307 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 		return indexStoragePathFile.getPath();
 	}
 	
-	@Override
-	synchronized public void scheduleMCA(String videoId, LikeLinesWebService llServer, boolean contentAnalysisRequired) {
-		if (indexedVideos.contains(videoId)) {
-			System.err.println("scheduleMCA: Ignoring videoId " + videoId + " since it's being indexed or has been.");
+	private long getRevalidateAfter() {
+		final String revalidateSeconds = getProperty("aggregateRevalidateSeconds");
+		if (revalidateSeconds != null) {
+			try {
+				return Long.parseLong(revalidateSeconds.trim()) * 1000;
+			} catch (NumberFormatException e) {
+				_log.warn("LLIndexer: aggregateRevalidateSeconds should be a number: " + revalidateSeconds);
+			}
+		}
+		return AggregateCache.DEFAULT_REVALIDATE_AFTER;
+	}
+	
+	/**
+	 * Opens the MCA journal in the index storage.
+	 * 
+	 * @return The journal, or null if it cannot be opened
+	 */
+	private MCAJournal openMCAJournal() {
+		final long retryAfter = getIntProperty("mcaRetryFailedMinutes", DEFAULT_MCA_RETRY_FAILED_MINUTES) * 60000L;
+		// each node sharing the index storage keeps its own journal
+		final File journalFile = new File(indexStoragePath, "mca-journal-" + nodeId.replaceAll("[^A-Za-z0-9_.-]", "_") + ".log");
+		try {
+			return new MCAJournal(journalFile, getJournalRetention(), retryAfter);
+		} catch (IOException e) {
+			_log.warn("LLIndexer: cannot open MCA journal, MCA tasks will not be resumed after a restart", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * @return The time (ms) after which finished MCA tasks are forgotten
+	 */
+	private long getJournalRetention() {
+		return getIntProperty("mcaJournalRetentionHours", DEFAULT_MCA_JOURNAL_RETENTION_HOURS) * 3600000L;
+	}
+	
+	/**
+	 * Determines the ID of this node among the nodes sharing the index
+	 * storage: the configured nodeId, or else the host name.
+	 * 
+	 * @return The node ID
+	 */
+	private String getNodeId() {
+		final String configuredNodeId = getProperty("nodeId");
+		if (configuredNodeId != null && configuredNodeId.trim().length() > 0)
+			return configuredNodeId.trim();
+		
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return ManagementFactory.getRuntimeMXBean().getName();
+		}
+	}
+	
+	/**
+	 * Resumes the unfinished MCA tasks of the journal, e.g., after a restart.
+	 */
+	private void resumeMCATasks() {
+		if (mcaJournal == null)
 			return;
+		
+		for (MCAJournal.Entry entry : mcaJournal.unfinished()) {
+			final LikeLinesWebService llServer;
+			try {
+				llServer = new LikeLinesWebService(entry.serverUrl);
+			} catch (MalformedURLException e) {
+				_log.warn("LLIndexer: cannot resume MCA task, malformed URL in server: " + entry.serverUrl);
+				continue;
+			}
+			
+			final MCATask task = new MCATask(entry.videoId, llServer, entry.contentAnalysisRequired, entry.state);
+			if (activeTasks.putIfAbsent(entry.videoId, task) != null)
+				continue;
+			if (!mcaSlots.tryAcquire()) {
+				// the remaining tasks are resumed when their videos are scheduled again
+				activeTasks.remove(entry.videoId);
+				_log.warn("LLIndexer: MCA queue is full, not resuming remaining MCA tasks");
+				break;
+			}
+			
+			System.err.println("MCATask: Resuming " + entry.videoId + " after stage " + entry.state);
+			runStage(task, Stage.FETCH);
+		}
+	}
+	
+	@Override
+	public Aggregate aggregate(LikeLinesWebService llServer, String videoId, boolean sketched) throws IOException {
+		return aggregateCache.get(llServer, videoId, sketched);
+	}
+	
+	@Override
+	public FrameCacheStatus getFrameCacheStatus() {
+		return frameCache.status();
+	}
+	
+	/**
+	 * Creates an executor per MCA stage, each with a fixed number of workers.
+	 * On virtual threads, the fetch and post stages default to a worker per
+	 * slot in the pipeline, so their waiting is bounded by the MCA slots only.
+	 */
+	private void createMCAExecutors() {
+		final boolean virtual = Threads.usesVirtualThreads();
+		stageExecutors.put(Stage.FETCH, createStageExecutor(Stage.FETCH,
+				getIntProperty("mcaFetchWorkers", virtual ? mcaQueueSize : DEFAULT_MCA_FETCH_WORKERS)));
+		stageExecutors.put(Stage.ANALYZE, createStageExecutor(Stage.ANALYZE,
+				getIntProperty("mcaAnalyzeWorkers", DEFAULT_MCA_ANALYZE_WORKERS)));
+		stageExecutors.put(Stage.POST, createStageExecutor(Stage.POST,
+				getIntProperty("mcaPostWorkers", virtual ? mcaQueueSize : DEFAULT_MCA_POST_WORKERS)));
+		// fetches comments and metadata alongside the downloads of the FETCH workers
+		metadataExecutor = createExecutor("LLIndexer-MCA-metadata-", stageExecutors.get(Stage.FETCH).getCorePoolSize(), true);
+		// extracts the new key frames of indexed videos, one video at a time
+		if (keyFramePrefetchN > 0)
+			keyFrameExecutor = createExecutor("LLIndexer-MCA-frames-", 1, false);
+	}
+	
+	/**
+	 * Creates the executor of an MCA stage and its queue of pending tasks. The
+	 * queues are unbounded, since the number of tasks in the pipeline is
+	 * bounded by the MCA slots.
+	 * 
+	 * @param stage The stage
+	 * @param workers The number of workers
+	 * @return The executor
+	 */
+	private ThreadPoolExecutor createStageExecutor(Stage stage, int workers) {
+		pendingTasks.put(stage, new ArrayList<MCATask>());
+		stageStats.put(stage, new StageStats());
+		return createExecutor("LLIndexer-MCA-" + stage.name().toLowerCase(Locale.US) + "-", workers, stage != Stage.ANALYZE);
+	}
+	
+	/**
+	 * Creates an executor with a fixed number of daemon workers and an
+	 * unbounded queue.
+	 * 
+	 * @param name The prefix of the workers' names
+	 * @param workers The number of workers
+	 * @param ioBound Whether the workers mostly wait for I/O, in which case
+	 *            they are virtual threads if enabled (see {@link Threads})
+	 * @return The executor
+	 */
+	private ThreadPoolExecutor createExecutor(final String name, int workers, boolean ioBound) {
+		final ThreadFactory threadFactory;
+		if (ioBound) {
+			threadFactory = Threads.ioThreadFactory(name);
+		}
+		else {
+			final AtomicInteger counter = new AtomicInteger();
+			threadFactory = new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, name + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			};
+		}
+		
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * Stops the MCA workers when the component is deactivated. Running tasks
+	 * are interrupted and queued tasks are dropped.
+	 */
+	public void deactivate() {
+		int dropped = 0;
+		for (ThreadPoolExecutor executor : stageExecutors.values())
+			dropped += executor.shutdownNow().size();
+		metadataExecutor.shutdownNow();
+		if (keyFrameExecutor != null)
+			keyFrameExecutor.shutdownNow();
+		mcaLeases.shutdown();
+		secretKeys.shutdown();
+		aggregateCache.shutdown();
+		
+		// dropped tasks are resumed from the journal on the next activation
+		if (dropped > 0)
+			_log.info("LLIndexer: deactivate: dropped " + dropped + " queued MCA stage(s)");
+		try {
+			for (ThreadPoolExecutor executor : stageExecutors.values())
+				if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+					_log.warn("LLIndexer: deactivate: MCA tasks did not stop in time");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (mcaJournal != null)
+			mcaJournal.close();
+	}
+	
+	@Override
+	public ScheduleStatus scheduleMCA(String videoId, LikeLinesWebService llServer, boolean contentAnalysisRequired) {
+		return scheduleMCA(videoId, llServer, contentAnalysisRequired, 0);
+	}
+	
+	@Override
+	public ScheduleStatus scheduleMCA(String videoId, LikeLinesWebService llServer, boolean contentAnalysisRequired, int numPlaybacks) {
+		// finished and recently failed videos are not indexed again until their journal entry expires
+		final MCAJournal.Entry entry = (mcaJournal == null) ? null : mcaJournal.get(videoId);
+		if (entry != null && entry.state.isFinal()) {
+			System.err.println("scheduleMCA: Ignoring videoId " + videoId + " since it has been indexed (" + entry.state + ").");
+			return counted(ScheduleStatus.DUPLICATE);
+		}
+		
+		if (mcaLeases.isDone(videoId) || mcaLeases.isHeldElsewhere(videoId)) {
+			System.err.println("scheduleMCA: Ignoring videoId " + videoId + " since another node is indexing it or has been.");
+			return counted(ScheduleStatus.DUPLICATE);
+		}
+		
+		// repeated requests raise the priority of a video that is being indexed
+		mcaDemand.request(videoId, numPlaybacks);
+		
+		// an unfinished task (not resumed at start-up) continues after its last completed stage
+		final State checkpoint = (entry == null) ? null : entry.state;
+		final MCATask task = new MCATask(videoId, llServer, contentAnalysisRequired, checkpoint);
+		if (activeTasks.putIfAbsent(videoId, task) != null) {
+			System.err.println("scheduleMCA: Ignoring videoId " + videoId + " since it's being indexed.");
+			return counted(ScheduleStatus.DUPLICATE);
+		}
+		
+		if (!mcaSlots.tryAcquire()) {
+			// allow the video to be scheduled again once there is room
+			activeTasks.remove(videoId);
+			mcaDemand.forget(videoId);
+			System.err.println("scheduleMCA: Rejecting videoId " + videoId + " since the MCA queue is full.");
+			return counted(ScheduleStatus.REJECTED);
+		}
+		
+		runStage(task, Stage.FETCH);
+		return counted(ScheduleStatus.SCHEDULED);
+	}
+	
+	private ScheduleStatus counted(ScheduleStatus status) {
+		scheduleCounts.get(status).incrementAndGet();
+		return status;
+	}
+	
+	@Override
+	public MCAJobStatus getMCAStatus(String videoId) {
+		final MCATask task = activeTasks.get(videoId);
+		if (task != null)
+			return task.status(null);
+		
+		synchronized (recentStatuses) {
+			final MCAJobStatus status = recentStatuses.get(videoId);
+			if (status != null)
+				return status;
 		}
-		// For now, simplistic mechanism to prevent duplicate work:
-		indexedVideos.add(videoId); 
-		Thread thread = new Thread(new MCATask(videoId, llServer, contentAnalysisRequired));
-		thread.start();
+		
+		// e.g., ended before a restart
+		final MCAJournal.Entry entry = (mcaJournal == null) ? null : mcaJournal.get(videoId);
+		if (entry == null)
+			return null;
+		final Phase phase = (entry.state == State.POSTED) ? Phase.FINISHED
+				: (entry.state == State.FAILED) ? Phase.FAILED : Phase.UNFINISHED;
+		final Map<String, Long> none = Collections.emptyMap();
+		return new MCAJobStatus(videoId, entry.serverUrl, phase, null, entry.state.name(), progress(entry.state),
+				0, entry.time, none, none, null);
+	}
+	
+	@Override
+	public List<MCAJobStatus> getActiveMCAJobs() {
+		final List<MCAJobStatus> res = new ArrayList<MCAJobStatus>();
+		for (MCATask task : activeTasks.values())
+			res.add(task.status(null));
+		return res;
+	}
+	
+	@Override
+	public MCAQueueStatus getMCAQueueStatus() {
+		final List<MCAQueueStatus.StageStatus> stages = new ArrayList<MCAQueueStatus.StageStatus>();
+		for (Stage stage : Stage.values()) {
+			final List<MCATask> pending = pendingTasks.get(stage);
+			final int queued;
+			synchronized (pending) {
+				queued = pending.size();
+			}
+			final StageStats stats = stageStats.get(stage);
+			final long started = stats.started.get();
+			final long completed = stats.completed.get();
+			stages.add(new MCAQueueStatus.StageStatus(stage.name(), stageExecutors.get(stage).getCorePoolSize(),
+					queued, (int) (started - completed), completed,
+					(started == 0) ? 0 : stats.waitMillis.get() / started,
+					(completed == 0) ? 0 : stats.runMillis.get() / completed));
+		}
+		
+		return new MCAQueueStatus(stages, activeTasks.size(), mcaQueueSize,
+				scheduleCounts.get(ScheduleStatus.SCHEDULED).get(), scheduleCounts.get(ScheduleStatus.DUPLICATE).get(),
+				scheduleCounts.get(ScheduleStatus.REJECTED).get(), endCounts.get(Phase.FINISHED).get(),
+				endCounts.get(Phase.FAILED).get(), endCounts.get(Phase.CANCELLED).get());
+	}
+	
+	/**
+	 * @return The fraction of the MCA stages completed in a given state
+	 */
+	private static double progress(State state) {
+		if (state == null || state == State.FAILED)
+			return 0;
+		return (double) state.ordinal() / State.POSTED.ordinal();
 	}
 	
 	@Override
@@ -120,6 +562,21 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 		}
 		final String youtubeId = videoId.substring("YouTube:".length());
 		
+		final File[] destinations = new File[nKeyFrames.length];
+		final String[] cached = new String[nKeyFrames.length];
+		boolean allCached = true;
+		for (int i = 0; i < nKeyFrames.length; i++) {
+			int ts = (int) nKeyFrames[i];
+			destinations[i] = new File(indexStoragePath, 
+					String.format(Locale.US, "mca-%s-frame_%03d.jpg", youtubeId, ts));
+			cached[i] = frameCache.get(videoId, ts);
+			allCached &= cached[i] != null;
+		}
+		
+		// hot frames are served without listing the index storage or reading files
+		if (allCached && nKeyFrames.length > 0)
+			return new ArrayList<String>(Arrays.asList(cached));
+		
 		File index = new File(indexStoragePath);
 		String sourceWithoutExtension = "mca-" + youtubeId;
 		File[] candidates = findFileWithoutExtension(index, sourceWithoutExtension);
@@ -127,35 +584,75 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 		final boolean sourceVideoFileExists = candidates.length == 1;
 		final String source = sourceVideoFileExists ? candidates[0].getAbsolutePath() : null;
 		
-		ArrayList<String> encodedFrames = new ArrayList<String>();
-		int numFramesAdded = 0;
+		// frames not extracted before are taken from the storyboard, without starting a process
+		final File storyboardFile = storyboardFile(youtubeId);
+		if (keyFrameSource != KeyFrameSource.PRECISE || !sourceVideoFileExists) {
+			final List<Integer> fromStoryboard = new ArrayList<Integer>();
+			for (int i = 0; i < nKeyFrames.length; i++) {
+				if (cached[i] == null && !destinations[i].exists())
+					fromStoryboard.add(i);
+			}
+			if (!fromStoryboard.isEmpty() && storyboardFile.exists())
+				readStoryboardFrames(videoId, storyboardFile, nKeyFrames, fromStoryboard, cached);
+		}
 		
-		for (double timestamp : nKeyFrames) {
-			int ts = (int) timestamp;
+		final List<Integer> missing = new ArrayList<Integer>();
+		for (int i = 0; i < nKeyFrames.length; i++) {
+			if (cached[i] == null && sourceVideoFileExists && keyFrameSource != KeyFrameSource.STORYBOARD_ONLY
+					&& !destinations[i].exists())
+				missing.add(i);
+		}
+		
+		if (!missing.isEmpty()) {
+			// all missing frames are extracted by a single ffmpeg process
+			System.err.println(">>> LLIndexer: extractFrames: Extracting " + missing.size() + " frame(s)...: " + source);
+			final double[] timestamps = new double[missing.size()];
+			final String[] paths = new String[missing.size()];
+			for (int j = 0; j < timestamps.length; j++) {
+				timestamps[j] = nKeyFrames[missing.get(j)];
+				paths[j] = destinations[missing.get(j)].getPath();
+			}
 			
-			File destination = new File(indexStoragePath, 
-					String.format(Locale.US, "mca-%s-frame_%03d.jpg", youtubeId, ts));
+			boolean[] extractSuccess = new boolean[paths.length];
+			try {
+				for (double timestamp : timestamps)
+					frameCache.invalidate(videoId, (int) timestamp);
+				extractSuccess = frameExtractor.extractAllAndWait(source, timestamps, paths);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
 			
-			if (sourceVideoFileExists && !destination.exists()) {
-				System.err.println(">>> LLIndexer: extractFrames: Extracting frame...: " + destination.getPath());
-				
-				boolean extractSuccess = false;
-				try {
-					extractSuccess = frameExtractor.extractAndWait(source, timestamp, destination.getPath()) == 0;
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				
-				if (!extractSuccess) {
-					System.err.println(">>> LLIndexer: extractFrames: Extraction failed! " + destination.getPath());
+			for (int j = 0; j < paths.length; j++) {
+				if (!extractSuccess[j]) {
+					System.err.println(">>> LLIndexer: extractFrames: Extraction failed! " + paths[j]);
 				}
 			}
+		}
+		
+		ArrayList<String> encodedFrames = new ArrayList<String>();
+		int numFramesAdded = 0;
+		
+		for (int i = 0; i < destinations.length; i++) {
+			final File destination = destinations[i];
+			String base64Encoded = cached[i];
+			if (base64Encoded != null) {
+				encodedFrames.add(base64Encoded);
+				numFramesAdded++;
+				continue;
+			}
 			
-			String base64Encoded = "";
+			base64Encoded = "";
 			try {
+				// taken before reading, so a change while reading invalidates the cached frame
+				final long lastModified = destination.lastModified();
+				final long length = destination.length();
 				base64Encoded = readFileBase64(destination);
-				if (!base64Encoded.isEmpty())
+				if (!base64Encoded.isEmpty()) {
+					frameCache.put(videoId, (int) nKeyFrames[i], base64Encoded, destination, lastModified, length);
 					numFramesAdded++;
+				}
 			} catch (IOException e) {
 				System.err.println(">>> LLIndexer: extractFrames: error encoding " + destination.getPath());
 				e.printStackTrace();
@@ -167,12 +664,52 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 			res = encodedFrames;
 		}
 		else if (!sourceVideoFileExists && nKeyFrames.length > 0 && numFramesAdded == 0) {
- 			System.err.println(">>> LLIndexer: extractFrames: video file not available and no previously extracted frames exist!");
+ 			System.err.println(">>> LLIndexer: extractFrames: video file not available and no storyboard or previously extracted frames exist!");
 		}
 		
 		return res;
 	}
 
+	/**
+	 * Reads the frames nearest to given timestamps from a storyboard and
+	 * caches them. A storyboard that cannot be read is skipped.
+	 * 
+	 * @param videoId The video ID
+	 * @param storyboardFile The storyboard of the video
+	 * @param timestamps The timestamps of the key frames
+	 * @param which The key frames to read
+	 * @param encoded Receives the base64 encoded key frames
+	 */
+	private void readStoryboardFrames(String videoId, File storyboardFile, double[] timestamps, List<Integer> which,
+			String[] encoded) {
+		try {
+			// taken before reading, so a rebuilt storyboard invalidates the cached frames
+			final long lastModified = storyboardFile.lastModified();
+			final long length = storyboardFile.length();
+			final Storyboard.Index index = Storyboard.readIndex(storyboardFile);
+			final int[] frames = new int[which.size()];
+			for (int j = 0; j < frames.length; j++)
+				frames[j] = index.nearest(timestamps[which.get(j)]);
+			
+			final byte[][] jpegs = index.read(frames);
+			for (int j = 0; j < frames.length; j++) {
+				final int i = which.get(j);
+				encoded[i] = new String(Base64.encodeBase64(jpegs[j]), "US-ASCII");
+				frameCache.put(videoId, (int) timestamps[i], encoded[i], storyboardFile, lastModified, length);
+			}
+		} catch (IOException e) {
+			System.err.println(">>> LLIndexer: extractFrames: cannot read storyboard " + storyboardFile + ": " + e);
+		}
+	}
+	
+	/**
+	 * @param youtubeId The YouTube ID of a video
+	 * @return The file holding the storyboard of the video
+	 */
+	private File storyboardFile(String youtubeId) {
+		return new File(indexStoragePath, "mca-" + youtubeId + "-storyboard.bin");
+	}
+	
 	private File[] findFileWithoutExtension(File dir, String baseFilename) {
 		final String prefix = baseFilename + ".";
 		return dir.listFiles(new FilenameFilter() {
@@ -205,32 +742,542 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 	}
 	
 	
-	public class MCATask implements Runnable {
+	/** The stages of an MCA task, each run by its own executor. */
+	enum Stage {
+		/** Network I/O: downloading the video, its comments and metadata */
+		FETCH,
+		/** CPU: transcoding the video and analyzing its motion activity */
+		ANALYZE,
+		/** Network I/O: posting the MCA results to the LikeLines server */
+		POST
+	}
+	
+	/**
+	 * Helper method to queue a stage of an MCA task on the stage's executor.
+	 * When the stage completes, the next stage is handed to its executor. The
+	 * task's slot in the pipeline is released when the task finishes or fails.
+	 * A resumed task skips the stages it completed before, starting from the
+	 * FETCH executor.
+	 * 
+	 * Queued stages are not run in arrival order: each time a worker becomes
+	 * available, it picks the queued task with the highest priority (see
+	 * {@link #priority(MCATask, long)}).
+	 * 
+	 * @param task The MCA task
+	 * @param stage The stage to run
+	 */
+	private void runStage(final MCATask task, final Stage stage) {
+		final List<MCATask> pending = pendingTasks.get(stage);
+		task.enqueued(stage);
+		synchronized (pending) {
+			pending.add(task);
+		}
+		
+		try {
+			stageExecutors.get(stage).execute(new Runnable() {
+				@Override
+				public void run() {
+					final MCATask next = pollPendingTask(stage);
+					if (next != null)
+						runStageNow(next, stage);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// only happens after deactivation
+			synchronized (pending) {
+				pending.remove(task);
+			}
+			System.err.println("MCATask: Dropping " + task.videoId + " at stage " + stage);
+			task.lastError = "Dropped at stage " + stage + " by deactivation";
+			finish(task, Phase.UNFINISHED);
+		}
+	}
+	
+	/**
+	 * Helper method to take the queued task with the highest priority from a
+	 * stage's queue. Tasks that have not started yet and whose demand has
+	 * faded are cancelled.
+	 * 
+	 * @param stage The stage
+	 * @return The task to run, or null if the queue is empty
+	 */
+	private MCATask pollPendingTask(Stage stage) {
+		final List<MCATask> pending = pendingTasks.get(stage);
+		final List<MCATask> cancelled = new ArrayList<MCATask>();
+		MCATask best = null;
+		
+		synchronized (pending) {
+			final long now = System.currentTimeMillis();
+			double bestPriority = Double.NEGATIVE_INFINITY;
+			
+			for (Iterator<MCATask> it = pending.iterator(); it.hasNext(); ) {
+				final MCATask task = it.next();
+				if (stage == Stage.FETCH && task.checkpoint == null && mcaDemand.requests(task.videoId) < CANCEL_DEMAND) {
+					it.remove();
+					cancelled.add(task);
+					continue;
+				}
+				
+				final double priority = priority(task, now);
+				if (priority > bestPriority) {
+					best = task;
+					bestPriority = priority;
+				}
+			}
+			if (best != null)
+				pending.remove(best);
+		}
+		
+		for (MCATask task : cancelled) {
+			System.err.println("MCATask: Cancelling " + task.videoId + " since it is no longer in demand");
+			task.lastError = "No longer in demand";
+			finish(task, Phase.CANCELLED);
+		}
+		return best;
+	}
+	
+	/**
+	 * Computes the priority of a queued task: the demand for its video plus
+	 * an aging term that grows by one every aging period the task has been
+	 * waiting, so tasks of unpopular videos are not starved. The sum is
+	 * divided by the expected analysis cost, which grows with the duration of
+	 * the video once it is known.
+	 * 
+	 * @param task The queued task
+	 * @param now The current time
+	 * @return The priority (higher runs first)
+	 */
+	private double priority(MCATask task, long now) {
+		final double aging = (double) (now - task.queuedAt) / agingPeriod;
+		final double cost = 1 + Math.max(task.duration, 0) / COST_UNIT_SECONDS;
+		return (mcaDemand.weight(task.videoId) + aging) / cost;
+	}
+	
+	/**
+	 * Helper method to run a stage of an MCA task in the calling worker.
+	 * 
+	 * @param task The MCA task
+	 * @param stage The stage to run
+	 */
+	private void runStageNow(MCATask task, Stage stage) {
+		final StageStats stats = stageStats.get(stage);
+		stats.started(task.started(stage));
+		
+		boolean done = true;
+		boolean failed = true;
+		// how a task that is done without failing ended
+		Phase ended = Phase.FINISHED;
+		try {
+			if (task.leaseLost)
+				throw new InterruptedException("Lost lease before stage " + stage);
+			
+			switch (stage) {
+				case FETCH:
+					final MCALeases.Claim claim = mcaLeases.claim(task.videoId);
+					if (claim != MCALeases.Claim.CLAIMED) {
+						System.err.println("MCATask: Skipping " + task.videoId + (claim == MCALeases.Claim.DONE
+								? " since it has been indexed by another node"
+								: " since it is being indexed by another node"));
+						if (claim == MCALeases.Claim.DONE) {
+							task.checkpoint(State.POSTED);
+						}
+						else {
+							task.lastError = "Being indexed by another node";
+							ended = Phase.CANCELLED;
+						}
+						failed = false;
+						break;
+					}
+					
+					final Stage next = task.restore();
+					if (next == Stage.FETCH) {
+						done = failed = !task.fetch();
+						if (!done)
+							runStage(task, Stage.ANALYZE);
+					}
+					else {
+						done = failed = false;
+						runStage(task, next);
+					}
+					break;
+				case ANALYZE:
+					task.analyze();
+					done = failed = false;
+					runStage(task, Stage.POST);
+					break;
+				case POST:
+					task.post();
+					failed = false;
+					System.err.println("MCATask: Done: " + task.videoId);
+					prefetchKeyFrames(task.videoId, task.llServer);
+					break;
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			task.lastError = e.toString();
+		}
+		catch (InterruptedException e) {
+			if (!task.leaseLost) {
+				// interrupted by deactivation: resume after a restart
+				e.printStackTrace();
+				task.lastError = "Interrupted at stage " + stage;
+				failed = false;
+				ended = Phase.UNFINISHED;
+				Thread.currentThread().interrupt();
+			}
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+			task.lastError = e.toString();
+		}
+		finally {
+			stats.ended(task.ended(stage));
+			if (task.leaseLost) {
+				// another node indexes the video now, whatever the outcome of this stage
+				Thread.interrupted();
+				if (done && failed) {
+					System.err.println("MCATask: Cancelling " + task.videoId + " since another node broke its lease");
+					task.lastError = "Lost lease at stage " + stage;
+					failed = false;
+					ended = Phase.CANCELLED;
+				}
+			}
+			if (done) {
+				if (failed)
+					task.checkpoint(State.FAILED);
+				finish(task, failed ? Phase.FAILED : ended);
+			}
+		}
+	}
+	
+	/**
+	 * Extracts the key frames of a video in the background after its MCA
+	 * results were posted, while the source video is on disk, so the next
+	 * request for the video finds its frames ready (and cached). The
+	 * aggregate is refreshed, since the new results move the peaks, and the
+	 * key frames are computed like the pipelet does, given its n and mode
+	 * (keyFramePrefetchN and keyFramePrefetchSketched).
+	 * 
+	 * @param videoId The video ID
+	 * @param llServer The LikeLines server the results were posted to
+	 */
+	private void prefetchKeyFrames(final String videoId, final LikeLinesWebService llServer) {
+		final int n = keyFramePrefetchN;
+		if (keyFrameExecutor == null || frameExtractor == null)
+			return;
+		
+		final boolean sketched = keyFramePrefetchSketched;
+		try {
+			keyFrameExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final Aggregate aggregate = aggregateCache.refresh(llServer, videoId, sketched);
+						final double[] keyFrames = llServer.getNKeyFrames(n, aggregate);
+						final List<String> frames = extractFrames(videoId, keyFrames);
+						System.err.println("MCATask: Prefetched " + ((frames == null) ? 0 : keyFrames.length)
+								+ " key frame(s) of " + videoId);
+					} catch (IOException e) {
+						System.err.println("MCATask: Could not prefetch key frames of " + videoId + ": " + e);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// only happens after deactivation
+		}
+	}
+	
+	/**
+	 * Helper method to release the pipeline slot and the lease of a finished,
+	 * failed or dropped task. Its final status is kept for status queries.
+	 * 
+	 * @param task The task
+	 * @param phase How the task ended
+	 */
+	private void finish(MCATask task, Phase phase) {
+		mcaLeases.release(task.videoId);
+		synchronized (recentStatuses) {
+			recentStatuses.put(task.videoId, task.status(phase));
+		}
+		activeTasks.remove(task.videoId);
+		mcaDemand.forget(task.videoId);
+		endCounts.get(phase).incrementAndGet();
+		mcaSlots.release();
+	}
+	
+	/**
+	 * Cancels the task of a video whose lease was broken by another node,
+	 * which indexes the video from now on. A queued task is dropped at once;
+	 * a running stage is interrupted, which kills its external process, and
+	 * the task ends when the stage returns.
+	 * 
+	 * @param videoId The video ID
+	 */
+	private void cancelLostLease(String videoId) {
+		final MCATask task = activeTasks.get(videoId);
+		if (task == null)
+			return;
+		
+		final Stage queued = task.leaseLost();
+		if (queued == null)
+			return;
+		
+		final List<MCATask> pending = pendingTasks.get(queued);
+		final boolean dequeued;
+		synchronized (pending) {
+			dequeued = pending.remove(task);
+		}
+		if (dequeued) {
+			System.err.println("MCATask: Cancelling " + videoId + " since another node broke its lease");
+			task.lastError = "Lost lease while queued for stage " + queued;
+			finish(task, Phase.CANCELLED);
+		}
+	}
+	
+	/** Counters of the runs of an MCA stage since activation */
+	private static class StageStats {
+		final AtomicLong started = new AtomicLong();
+		final AtomicLong completed = new AtomicLong();
+		/** Total time (ms) the started runs waited in the queue */
+		final AtomicLong waitMillis = new AtomicLong();
+		/** Total time (ms) the completed runs took */
+		final AtomicLong runMillis = new AtomicLong();
+		
+		void started(long waited) {
+			waitMillis.addAndGet(waited);
+			started.incrementAndGet();
+		}
+		
+		void ended(long ran) {
+			runMillis.addAndGet(ran);
+			completed.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * An MCA task for a single video. Its stages are run one after another,
+	 * but by different executors, so stages of different videos overlap.
+	 * 
+	 * Completed stages are recorded in the MCA journal. Their results are
+	 * stored as artifacts in the index storage, each written to a temporary
+	 * file and then renamed, so a task can resume after a restart without
+	 * picking up partially written files.
+	 */
+	public class MCATask {
 		
 		private final String videoId;
 		private final LikeLinesWebService llServer;
 		private final String serverUrl;
 		private final boolean contentAnalysisRequired; 
 		
+		/** The last completed stage according to the journal (null for a new task) */
+		private volatile State checkpoint;
+		
+		/** The time at which the task entered its current stage's queue */
+		private long queuedAt;
+		
+		// status of the task, see status()
+		private final long scheduledAt = System.currentTimeMillis();
+		private long updatedAt = scheduledAt;
+		/** The stage the task is queued for, or null */
+		private Stage queuedStage;
+		/** The stage being run, or null */
+		private Stage runningStage;
+		/** The stage that ran last, or null */
+		private Stage lastStage;
+		private long stageStartedAt;
+		private final Map<Stage, Long> waitTimes = new EnumMap<Stage, Long>(Stage.class);
+		private final Map<Stage, Long> runTimes = new EnumMap<Stage, Long>(Stage.class);
+		/** The last stage completed, ignoring failure */
+		private volatile State progress;
+		private volatile String lastError;
+		
+		/** Whether another node broke the lease of the video */
+		private volatile boolean leaseLost;
+		/** The worker running a stage, or null */
+		private Thread runner;
+		
+		// results of the stages
+		private String youtubeId;
+		private String sourceVideoPath;
+		private double[] motionScores;
+		private volatile double[] deeplinks;
+		private volatile int duration = -1;
+		private volatile boolean metadataPosted;
+		
 		public MCATask(String videoId, LikeLinesWebService llServer, boolean contentAnalysisRequired) {
+			this(videoId, llServer, contentAnalysisRequired, null);
+		}
+		
+		MCATask(String videoId, LikeLinesWebService llServer, boolean contentAnalysisRequired, State checkpoint) {
 			this.videoId = videoId;
 			this.llServer = llServer;
 			this.serverUrl = llServer.serverUrl;
 			this.contentAnalysisRequired = contentAnalysisRequired;
+			this.checkpoint = checkpoint;
+			this.progress = checkpoint;
 		}
 		
-		@Override
-		public void run() {
+		/**
+		 * Records that the task entered the queue of a stage.
+		 */
+		synchronized void enqueued(Stage stage) {
+			queuedStage = stage;
+			queuedAt = updatedAt = System.currentTimeMillis();
+		}
+		
+		/**
+		 * Records that a worker started running a stage.
+		 * 
+		 * @return The time (ms) the task waited in the queue
+		 */
+		synchronized long started(Stage stage) {
+			runner = Thread.currentThread();
+			stageStartedAt = updatedAt = System.currentTimeMillis();
+			final long waited = stageStartedAt - queuedAt;
+			add(waitTimes, stage, waited);
+			if (queuedStage == stage)
+				queuedStage = null;
+			runningStage = lastStage = stage;
+			return waited;
+		}
+		
+		/**
+		 * Records that a worker finished running a stage. The task may have
+		 * entered the queue of the next stage already.
+		 * 
+		 * @return The time (ms) the stage took
+		 */
+		synchronized long ended(Stage stage) {
+			final long now = System.currentTimeMillis();
+			final long ran = now - stageStartedAt;
+			add(runTimes, stage, ran);
+			if (runningStage == stage)
+				runningStage = null;
+			runner = null;
+			if (updatedAt < now)
+				updatedAt = now;
+			return ran;
+		}
+		
+		/**
+		 * Records that another node broke the lease of the video, and
+		 * interrupts the worker running a stage of the task, if any. A worker
+		 * that starts a stage afterwards sees the flag instead.
+		 * 
+		 * @return The stage the task is queued for, or null
+		 */
+		synchronized Stage leaseLost() {
+			leaseLost = true;
+			if (runner != null)
+				runner.interrupt();
+			return queuedStage;
+		}
+		
+		/**
+		 * Takes a snapshot of the status of the task.
+		 * 
+		 * @param ended How the task ended, or null if it is in the pipeline
+		 * @return The status
+		 */
+		synchronized MCAJobStatus status(Phase ended) {
+			final long now = System.currentTimeMillis();
+			final Map<String, Long> waited = new LinkedHashMap<String, Long>();
+			final Map<String, Long> ran = new LinkedHashMap<String, Long>();
+			for (Stage stage : Stage.values()) {
+				Long time = waitTimes.get(stage);
+				if (stage == queuedStage)
+					time = (time == null ? 0 : time) + now - queuedAt;
+				if (time != null)
+					waited.put(stage.name(), time);
+				
+				time = runTimes.get(stage);
+				if (stage == runningStage)
+					time = (time == null ? 0 : time) + now - stageStartedAt;
+				if (time != null)
+					ran.put(stage.name(), time);
+			}
+			
+			// a task between the end of a stage and the queue of the next one counts as running
+			final Phase phase = (ended != null) ? ended
+					: (runningStage == null && queuedStage != null) ? Phase.QUEUED : Phase.RUNNING;
+			final Stage stage = (runningStage != null) ? runningStage : (queuedStage != null) ? queuedStage : lastStage;
+			return new MCAJobStatus(videoId, serverUrl, phase, (stage == null) ? null : stage.name(),
+					(checkpoint == null) ? null : checkpoint.name(), progress(progress), scheduledAt,
+					(ended != null) ? now : updatedAt, waited, ran, lastError);
+		}
+		
+		/**
+		 * Restores the results of the completed stages from their artifacts.
+		 * If an artifact is missing, the task starts over.
+		 * 
+		 * @return The stage to continue with
+		 */
+		Stage restore() throws IOException {
+			if (checkpoint == null || checkpoint == State.SCHEDULED || !videoId.startsWith("YouTube:")) {
+				checkpoint(State.SCHEDULED);
+				return Stage.FETCH;
+			}
+			youtubeId = videoId.substring("YouTube:".length());
+			
+			final File[] candidates = findFileWithoutExtension(new File(indexStoragePath), "mca-" + youtubeId);
+			final File fetchFile = artifact("fetch.json");
+			final File motionFile = artifact("motion.json");
+			final boolean analyzed = checkpoint.compareTo(State.ANALYZED) >= 0;
+			
+			if (candidates.length != 1 || !fetchFile.exists() || (analyzed && !motionFile.exists())) {
+				System.err.println("MCATask: Artifacts of " + videoId + " are missing, starting over");
+				checkpoint(State.SCHEDULED);
+				return Stage.FETCH;
+			}
+			
+			sourceVideoPath = candidates[0].getAbsolutePath();
+			final JsonObject fetchResults = readArtifact(fetchFile);
+			deeplinks = toDoubles(fetchResults.get("deeplinks"));
+			duration = fetchResults.get("duration").getAsInt();
+			metadataPosted = fetchResults.has("metadataPosted") && fetchResults.get("metadataPosted").getAsBoolean();
+			
+			if (!analyzed)
+				return Stage.ANALYZE;
+			
+			motionScores = toDoubles(readArtifact(motionFile).get("motionActivity"));
+			return Stage.POST;
+		}
+		
+		/**
+		 * Network stage: downloads the video, its deeplink comments and its metadata.
+		 * The comments and metadata do not depend on the video file, so they
+		 * are fetched (and posted) by another worker while the video downloads.
+		 * 
+		 * @return False if the task cannot continue
+		 */
+		boolean fetch() throws IOException, InterruptedException {
 			System.err.println("MCATask: Starting: " + videoId);
-			String secretKey = secretKeys.get(serverUrl);
 			
 			if (!videoId.startsWith("YouTube:")) {
 				System.err.println("MCATask only supports YouTube:<id>!");
-				return;
+				lastError = "Only YouTube:<id> is supported";
+				return false;
 			}
 			// future implementation should introduce branches for different URL schemes
-			final String youtubeId = videoId.substring("YouTube:".length());
+			youtubeId = videoId.substring("YouTube:".length());
 			
+			final Future<Void> metadataFetch = metadataExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					fetchMetadata();
+					postMetadata();
+					return null;
+				}
+			});
+			
+			// on any other exit (failure, interrupt, lost lease), the metadata must not be posted
+			boolean fetched = false;
 			try {
 				final Map<String, String> videoInfo = YouTubeDL.getVideoInfo(youtubeId);
 				final boolean ageGate = YouTubeDL.isAgeRestrictedVideo(youtubeId);
@@ -243,89 +1290,288 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 				
 				if (firstStream == null) {
 					System.err.println("ERR: No stream found!");
-					return;
+					lastError = "No stream found";
+					return false;
 				}
 				
 				final String sourceWithoutExtension = "mca-" + youtubeId;
 				File[] candidates = findFileWithoutExtension(new File(indexStoragePath), sourceWithoutExtension);
 				
-				final String sourceVideoPath;
 				if (candidates.length == 1) {
 					sourceVideoPath = candidates[0].getAbsolutePath();
 					System.err.println("MCATask: Skipping download, file already exists: " + sourceVideoPath);
 				}
 				else {
-					sourceVideoPath = new File(indexStoragePath, sourceWithoutExtension + firstStream.getExtension()).getPath();
-					firstStream.downloadTo(sourceVideoPath);
+					// the partial download does not match "mca-<id>.*" until it is renamed
+					final File partFile = artifact("download.part");
+					final File sourceFile = new File(indexStoragePath, sourceWithoutExtension + firstStream.getExtension());
+					firstStream.downloadTo(partFile.getPath());
+					rename(partFile, sourceFile);
+					sourceVideoPath = sourceFile.getPath();
 				}
 				
-				final File convertedVideoFile = new File(indexStoragePath, sourceWithoutExtension + "-conv.mpg");
-				final String convertedVideoPath = convertedVideoFile.getPath();
-				
-				if (!convertedVideoFile.exists()) {
-					boolean transcodeSuccess = transcoder.transcodeAndWait(sourceVideoPath, convertedVideoPath) == 0;
-				}
-				else {
-					System.err.println("MCATask: Skipping conversion, file already exists: " + convertedVideoPath);
-				}
-				
-				final double[] motionScores;
-				if (contentAnalysisRequired) {
-					System.err.println("MCATask: Done converting, now starting motion analysis");
-					motionScores = motionActivityAnalyzer.analyze(convertedVideoPath);
-				}
-				else {
-					System.err.println("MCATask: Skipping motion analysis (not required)");
-					motionScores = null;
-				}
-				
-				System.err.println("MCATask: Now downloading comments");
-				
-				List<Integer> deeplinksList = new ArrayList<Integer>();
-				for (YouTubeComment cmnt : YouTubeComment.retrieveDeepLinkComments(youtubeId))
-					for (TimePoint deeplink : cmnt.deeplinks)
-						deeplinksList.add(deeplink.inSeconds);
-				
-				final double[] deeplinks = new double[deeplinksList.size()];
-				for (int i = 0; i < deeplinks.length; i++)
-					deeplinks[i] = deeplinksList.get(i);
-				
-				// Note: this should be perhaps partially moved into the YouTubeDL class?
-				System.err.println("MCATask: Now retrieving metadata");
-				JsonObject jsonMetadata = Ajax
-						.getJSON("http://gdata.youtube.com/feeds/api/videos/"
-								+ youtubeId + "?v=2&alt=jsonc&prettyprint=true").getAsJsonObject();
-				int duration = -1;
 				try {
-					duration = jsonMetadata.get("data").getAsJsonObject().get("duration").getAsInt();
+					metadataFetch.get();
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof IOException)
+						throw (IOException) cause;
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					throw new IOException(cause);
 				}
-				finally {}
 				
-				System.err.println("MCATask: Submitting MCA results to server: " + serverUrl);
+				final JsonObject fetchResults = new JsonObject();
+				fetchResults.add("deeplinks", toJson(deeplinks));
+				fetchResults.addProperty("duration", duration);
+				fetchResults.addProperty("metadataPosted", metadataPosted);
+				writeArtifact(artifact("fetch.json"), fetchResults);
+				checkpoint(State.DOWNLOADED);
+				fetched = true;
 				
-				if (motionScores != null) {
-					llServer.postMCA(videoId, "motionActivity", llServer.MCA_TYPE_CURVE, motionScores, secretKey);
-				}
+				return true;
+			}
+			finally {
+				if (!fetched)
+					metadataFetch.cancel(true);
+			}
+		}
+		
+		/**
+		 * Retrieves the deeplinks from the video's comments and its duration
+		 * from its metadata.
+		 */
+		private void fetchMetadata() throws IOException {
+			System.err.println("MCATask: Now downloading comments");
+			
+			List<Integer> deeplinksList = new ArrayList<Integer>();
+			for (YouTubeComment cmnt : YouTubeComment.retrieveDeepLinkComments(youtubeId))
+				for (TimePoint deeplink : cmnt.deeplinks)
+					deeplinksList.add(deeplink.inSeconds);
+			
+			final double[] deeplinks = new double[deeplinksList.size()];
+			for (int i = 0; i < deeplinks.length; i++)
+				deeplinks[i] = deeplinksList.get(i);
+			this.deeplinks = deeplinks;
+			
+			// Note: this should be perhaps partially moved into the YouTubeDL class?
+			System.err.println("MCATask: Now retrieving metadata");
+			JsonObject jsonMetadata = Ajax
+					.getJSON("http://gdata.youtube.com/feeds/api/videos/"
+							+ youtubeId + "?v=2&alt=jsonc&prettyprint=true").getAsJsonObject();
+			try {
+				duration = jsonMetadata.get("data").getAsJsonObject().get("duration").getAsInt();
+			}
+			finally {}
+		}
+		
+		/**
+		 * Posts the deeplinks and duration ahead of the motion analysis. If
+		 * posting fails, they are posted again in the posting stage.
+		 */
+		private void postMetadata() {
+			try {
+				final String secretKey = secretKeys.get(serverUrl);
+				if (cancelled())
+					return;
+				System.err.println("MCATask: Submitting deeplinks and duration to server: " + serverUrl);
 				if (duration >= 0) {
 					llServer.postMCA(videoId, "duration", llServer.MCA_TYPE_POINT, new double[]{duration}, secretKey, 0.0);
 				}
+				if (cancelled())
+					return;
 				llServer.postMCA(videoId, "deeplinks", llServer.MCA_TYPE_POINT, deeplinks, secretKey);
+				metadataPosted = true;
+			} catch (IOException e) {
+				System.err.println("MCATask: Could not submit deeplinks and duration yet: " + e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
-			catch (IOException e) {
-				e.printStackTrace();
-				throw new RuntimeException(e);
+		}
+		
+		/**
+		 * @return True iff the fetch was cancelled or another node broke the
+		 *         lease, so nothing may be posted on behalf of the task
+		 */
+		private boolean cancelled() {
+			return Thread.currentThread().isInterrupted() || leaseLost;
+		}
+		
+		/**
+		 * CPU stage: transcodes the video, builds its storyboard and analyzes
+		 * its motion activity.
+		 */
+		void analyze() throws IOException, InterruptedException {
+			final File convertedVideoFile = new File(indexStoragePath, "mca-" + youtubeId + "-conv.mpg");
+			final String convertedVideoPath = convertedVideoFile.getPath();
+			
+			if (!convertedVideoFile.exists()) {
+				// ffmpeg picks the output format by extension, so keep ".mpg"
+				final File tmpFile = new File(indexStoragePath, "mca-" + youtubeId + "-conv.tmp.mpg");
+				if (transcoder.transcodeAndWait(sourceVideoPath, tmpFile.getPath()) != 0) {
+					tmpFile.delete();
+					throw new IOException("Transcoding failed: " + sourceVideoPath);
+				}
+				rename(tmpFile, convertedVideoFile);
 			}
-			catch (InterruptedException e) {
-				e.printStackTrace();
-				throw new RuntimeException(e);
+			else {
+				System.err.println("MCATask: Skipping conversion, file already exists: " + convertedVideoPath);
 			}
-			catch (RuntimeException e) {
-				e.printStackTrace();
-				throw e;
+			checkpoint(State.TRANSCODED);
+			
+			final File storyboardFile = storyboardFile(youtubeId);
+			if (storyboard != null && !storyboardFile.exists()) {
+				try {
+					final int frames = storyboard.buildAndWait(sourceVideoPath, storyboardFile);
+					System.err.println("MCATask: Built a storyboard of " + frames + " frames: " + storyboardFile);
+				} catch (IOException e) {
+					// key frames are then extracted from the video on request
+					System.err.println("MCATask: Could not build the storyboard: " + e);
+				}
 			}
 			
-			System.err.println("MCATask: Done: " + videoId);
+			if (contentAnalysisRequired) {
+				System.err.println("MCATask: Done converting, now starting motion analysis");
+				motionScores = motionActivityAnalyzer.analyze(convertedVideoPath);
+			}
+			else {
+				System.err.println("MCATask: Skipping motion analysis (not required)");
+				motionScores = null;
+			}
+			
+			final JsonObject analysisResults = new JsonObject();
+			analysisResults.add("motionActivity", toJson(motionScores));
+			writeArtifact(artifact("motion.json"), analysisResults);
+			checkpoint(State.ANALYZED);
+		}
+		
+		/**
+		 * Posting stage: submits the MCA results to the LikeLines server,
+		 * including the deeplinks and duration unless they were posted already.
+		 */
+		void post() throws IOException, InterruptedException {
+			String secretKey = secretKeys.get(serverUrl);
+			System.err.println("MCATask: Submitting MCA results to server: " + serverUrl);
+			
+			if (motionScores != null) {
+				llServer.postMCA(videoId, "motionActivity", llServer.MCA_TYPE_CURVE, motionScores, secretKey);
+			}
+			if (!metadataPosted) {
+				if (duration >= 0) {
+					llServer.postMCA(videoId, "duration", llServer.MCA_TYPE_POINT, new double[]{duration}, secretKey, 0.0);
+				}
+				llServer.postMCA(videoId, "deeplinks", llServer.MCA_TYPE_POINT, deeplinks, secretKey);
+			}
+			checkpoint(State.POSTED);
+			mcaLeases.markDone(videoId);
 		}
+		
+		/**
+		 * Records a completed stage in the journal. A journal that cannot be
+		 * written (or has been closed) does not stop the task; it only
+		 * prevents resuming it.
+		 * 
+		 * @param state The state reached
+		 */
+		void checkpoint(State state) {
+			checkpoint = state;
+			if (state != State.FAILED)
+				progress = state;
+			if (mcaJournal == null)
+				return;
+			
+			try {
+				mcaJournal.record(videoId, state, serverUrl, contentAnalysisRequired);
+			} catch (IOException e) {
+				_log.warn("LLIndexer: cannot record " + videoId + " as " + state + " in the MCA journal", e);
+			} catch (RuntimeException e) {
+				// the task must still release its slot and lease
+				_log.warn("LLIndexer: cannot record " + videoId + " as " + state + " in the MCA journal", e);
+			}
+		}
+		
+		/**
+		 * @param suffix The kind of artifact
+		 * @return The artifact file "mca-&lt;id&gt;-&lt;suffix&gt;" in the index storage
+		 */
+		private File artifact(String suffix) {
+			return new File(indexStoragePath, "mca-" + youtubeId + "-" + suffix);
+		}
+	}
+	
+	/**
+	 * Writes a JSON artifact to a temporary file and renames it.
+	 * 
+	 * @param file The artifact file
+	 * @param json The contents
+	 * @throws IOException When the artifact cannot be written
+	 */
+	private static void writeArtifact(File file, JsonElement json) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			fos.write(json.toString().getBytes("UTF-8"));
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		rename(tmp, file);
+	}
+	
+	/**
+	 * Reads a JSON artifact.
+	 * 
+	 * @param file The artifact file
+	 * @return The contents
+	 * @throws IOException When the artifact cannot be read or is invalid
+	 */
+	private static JsonObject readArtifact(File file) throws IOException {
+		final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			return new JsonParser().parse(reader).getAsJsonObject();
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid artifact: " + file, e);
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Renames a file, replacing the destination if it exists.
+	 * 
+	 * @throws IOException When the file cannot be renamed
+	 */
+	private static void rename(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			// renaming onto an existing file fails on some platforms
+			to.delete();
+			if (!from.renameTo(to))
+				throw new IOException("Could not rename " + from + " to " + to);
+		}
+	}
+	
+	private static JsonElement toJson(double[] values) {
+		if (values == null)
+			return null;
+		final JsonArray array = new JsonArray();
+		for (double value : values)
+			array.add(new JsonPrimitive(value));
+		return array;
+	}
+	
+	private static void add(Map<Stage, Long> times, Stage stage, long time) {
+		final Long total = times.get(stage);
+		times.put(stage, (total == null) ? time : total + time);
+	}
+	
+	private static double[] toDoubles(JsonElement json) {
+		if (json == null || json.isJsonNull())
+			return null;
+		final JsonArray array = json.getAsJsonArray();
+		final double[] values = new double[array.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = array.get(i).getAsDouble();
+		return values;
 	}
 	
 	/**
@@ -333,10 +1579,12 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 	 * 
 	 * @return The Properties or null if it does not exist
 	 */
-	private Properties loadProperties() {
+	private static Properties loadProperties() {
+		System.out.println(">>> LLIndexer: Reading (configuration/)" + Activator.BUNDLE_NAME + "/" + PROPERTIES_FILE);
+		
 		Properties res = null;
 		try {
-			res = ConfigUtils.getConfigProperties(Activator.BUNDLE_NAME, propertiesFile);
+			res = ConfigUtils.getConfigProperties(Activator.BUNDLE_NAME, PROPERTIES_FILE);
 		} catch (Exception e) {
 			_log.warn(e);
 		}
@@ -352,6 +1600,53 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 		return props == null ? null : props.getProperty(propertyName);
 	}
 	
+	/**
+	 * Gets a positive integer property, or a default value if the property is
+	 * missing or invalid
+	 * 
+	 * @return The property's value or the default value
+	 */
+	private int getIntProperty(String propertyName, int defaultValue) {
+		final String value = getProperty(propertyName);
+		if (value == null)
+			return defaultValue;
+		
+		try {
+			final int res = Integer.parseInt(value.trim());
+			if (res > 0)
+				return res;
+		} catch (NumberFormatException e) {
+		}
+		_log.warn("LLIndexer: " + propertyName + " should be a positive number: " + value);
+		return defaultValue;
+	}
+	
+	/**
+	 * Gets the keyFrameSource property: "storyboard" (default),
+	 * "storyboardOnly" or "precise"
+	 * 
+	 * @return The configured source of key frames
+	 */
+	private KeyFrameSource getKeyFrameSource() {
+		final String value = getProperty("keyFrameSource");
+		if (value != null) {
+			for (KeyFrameSource source : KeyFrameSource.values())
+				if (source.name().replace("_", "").equalsIgnoreCase(value.trim()))
+					return source;
+			_log.warn("LLIndexer: unknown keyFrameSource: " + value);
+		}
+		return KeyFrameSource.STORYBOARD;
+	}
+	
+	/**
+	 * Gets a timeout property given in seconds
+	 * 
+	 * @return The timeout in milliseconds, or the default timeout
+	 */
+	private long getTimeoutProperty(String propertyName, long defaultTimeout) {
+		return getIntProperty(propertyName, (int) (defaultTimeout / 1000)) * 1000L;
+	}
+	
 	/**
 	 * Find an executable on the PATH
 	 * 
@@ -405,46 +1700,5 @@ public class LLIndexer implements cubrikproject.tud.likelines.service.interfaces
 
 		return res;
 	}
-	
-	/**
-	 * Tests and removes secret keys that are invalid.
-	 * 
-	 * @param secretKeys
-	 */
-	private static void testSecretKeys(Map<String,String> secretKeys) {
-		final List<String> failedServers = new ArrayList<String>();
-		
-		for (final Entry<String, String> kv : secretKeys.entrySet()) {
-			final String server = kv.getKey();
-			final String key = kv.getValue();
-			
-			LikeLinesWebService llserver = null;
-			try {
-				llserver = new LikeLinesWebService(server);
-			} catch (MalformedURLException e) {
-				_log.warn("LLIndexer: testSecretKeys: malformed URL in server: " + server);
-				failedServers.add(server);
-				e.printStackTrace();
-				continue;
-			}
-			
-			try {
-				if (!llserver.testKey(key)) {
-					_log.warn("LLIndexer: testSecretKeys: incorrect key for server: " + server);
-					failedServers.add(server);
-					continue;
-				}
-					
-			} catch (IOException e) {
-				_log.warn("LLIndexer: testSecretKeys: I/O error, server down? " + server);
-				failedServers.add(server);
-				e.printStackTrace();
-				continue;
-			}
-		}
-		
-		for (final String server : failedServers)
-			secretKeys.remove(server);
-	}
 
 }
@@ -0,0 +1,101 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the recent demand for the MCA of videos in the pipeline.
+ *
+ * Every call to scheduleMCA for a video counts as a request. Requests decay
+ * exponentially with a configurable half-life, so a video that was requested
+ * often a while ago ends up with the same demand as a video that was just
+ * requested once. Together with the number of playback sessions, the demand
+ * determines the priority of a video's MCA task.
+ */
+class MCADemand {
+
+	/** Demand of a single video */
+	private static class Demand {
+		double requests;
+		long lastUpdate;
+		int numPlaybacks;
+	}
+
+	private final double decayPerMilli;
+
+	private final ConcurrentHashMap<String, Demand> demands = new ConcurrentHashMap<String, Demand>();
+
+	/**
+	 * @param halfLife Time (ms) after which a request counts for half
+	 */
+	MCADemand(long halfLife) {
+		this.decayPerMilli = Math.log(2) / halfLife;
+	}
+
+	/**
+	 * Registers a request for a video.
+	 *
+	 * @param videoId The video ID
+	 * @param numPlaybacks The number of playback sessions of the video
+	 */
+	void request(String videoId, int numPlaybacks) {
+		Demand demand = demands.get(videoId);
+		if (demand == null) {
+			final Demand newDemand = new Demand();
+			demand = demands.putIfAbsent(videoId, newDemand);
+			if (demand == null)
+				demand = newDemand;
+		}
+
+		final long now = System.currentTimeMillis();
+		synchronized (demand) {
+			demand.requests = decay(demand, now) + 1;
+			demand.lastUpdate = now;
+			demand.numPlaybacks = Math.max(demand.numPlaybacks, numPlaybacks);
+		}
+	}
+
+	/**
+	 * @param videoId The video ID
+	 * @return The decayed number of requests for the video
+	 */
+	double requests(String videoId) {
+		final Demand demand = demands.get(videoId);
+		if (demand == null)
+			return 0;
+		synchronized (demand) {
+			return decay(demand, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Computes the weight of a video's demand: its decayed number of
+	 * requests, scaled up logarithmically by its number of playback sessions.
+	 *
+	 * @param videoId The video ID
+	 * @return The weight (0 if the video is unknown)
+	 */
+	double weight(String videoId) {
+		final Demand demand = demands.get(videoId);
+		if (demand == null)
+			return 0;
+		synchronized (demand) {
+			return decay(demand, System.currentTimeMillis()) * (1 + Math.log1p(demand.numPlaybacks));
+		}
+	}
+
+	/**
+	 * Forgets the demand for a video, e.g., when its task has finished.
+	 *
+	 * @param videoId The video ID
+	 */
+	void forget(String videoId) {
+		demands.remove(videoId);
+	}
+
+	/**
+	 * Helper method to compute the decayed number of requests.
+	 */
+	private double decay(Demand demand, long now) {
+		return demand.requests * Math.exp(-decayPerMilli * Math.max(now - demand.lastUpdate, 0));
+	}
+}
@@ -0,0 +1,241 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of MCA jobs, recording the last completed stage of
+ * every video.
+ *
+ * Each line holds a time stamp, video ID, state, LikeLines server URL and
+ * whether content analysis is required, separated by tabs. Replaying the
+ * journal yields the latest state of each video; a partially written last
+ * line (after a crash) is ignored. Expired entries are dropped when the
+ * journal is compacted, which happens on start-up and whenever the journal
+ * has grown well beyond the number of live entries.
+ */
+public class MCAJournal {
+
+	/** The state of an MCA job, in the order in which they are reached */
+	public enum State {
+		SCHEDULED, DOWNLOADED, TRANSCODED, ANALYZED, POSTED, FAILED;
+
+		/** @return True iff the job has ended */
+		public boolean isFinal() {
+			return this == POSTED || this == FAILED;
+		}
+	}
+
+	/** The latest journal entry of a video. */
+	public static class Entry {
+		public final long time;
+		public final String videoId;
+		public final State state;
+		public final String serverUrl;
+		public final boolean contentAnalysisRequired;
+
+		Entry(long time, String videoId, State state, String serverUrl, boolean contentAnalysisRequired) {
+			this.time = time;
+			this.videoId = videoId;
+			this.state = state;
+			this.serverUrl = serverUrl;
+			this.contentAnalysisRequired = contentAnalysisRequired;
+		}
+
+		/** @return The entry as a journal line (without line separator) */
+		String toLine() {
+			return time + "\t" + videoId + "\t" + state + "\t" + serverUrl + "\t" + contentAnalysisRequired;
+		}
+
+		/**
+		 * @param line A journal line
+		 * @return The entry, or null if the line is malformed
+		 */
+		static Entry fromLine(String line) {
+			final String[] fields = line.split("\t");
+			if (fields.length != 5)
+				return null;
+			try {
+				return new Entry(Long.parseLong(fields[0]), fields[1], State.valueOf(fields[2]),
+						fields[3], Boolean.parseBoolean(fields[4]));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+	}
+
+	private final File journalFile;
+	private final long retention;
+	private final long retryAfter;
+
+	/** Latest entry per video */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	/** Number of lines in the journal file */
+	private int numLines;
+
+	private FileOutputStream out;
+
+	/**
+	 * Opens a journal, creating it if it does not exist.
+	 *
+	 * @param journalFile The journal file
+	 * @param retention Time (ms) after which finished or abandoned jobs expire
+	 * @param retryAfter Time (ms) after which failed jobs expire
+	 * @throws IOException When the journal cannot be read or written
+	 */
+	public MCAJournal(File journalFile, long retention, long retryAfter) throws IOException {
+		this.journalFile = journalFile;
+		this.retention = retention;
+		this.retryAfter = retryAfter;
+
+		replay();
+		compact();
+	}
+
+	/**
+	 * Returns the latest entry of a video, unless it has expired.
+	 *
+	 * @param videoId The video ID
+	 * @return The latest entry or null
+	 */
+	public synchronized Entry get(String videoId) {
+		final Entry entry = entries.get(videoId);
+		return (entry == null || isExpired(entry, System.currentTimeMillis())) ? null : entry;
+	}
+
+	/**
+	 * Returns the unfinished jobs that have not expired, e.g., to resume them
+	 * after a restart.
+	 *
+	 * @return The latest entries of the unfinished jobs
+	 */
+	public synchronized List<Entry> unfinished() {
+		final long now = System.currentTimeMillis();
+		final List<Entry> res = new ArrayList<Entry>();
+		for (Entry entry : entries.values())
+			if (!entry.state.isFinal() && !isExpired(entry, now))
+				res.add(entry);
+		return res;
+	}
+
+	/**
+	 * Appends an entry to the journal.
+	 *
+	 * @param videoId The video ID
+	 * @param state The state reached
+	 * @param serverUrl The LikeLines server to which the results are posted
+	 * @param contentAnalysisRequired Whether content analysis is required
+	 * @throws IOException When the entry cannot be written, e.g., after the
+	 *             journal was closed
+	 */
+	public synchronized void record(String videoId, State state, String serverUrl, boolean contentAnalysisRequired) throws IOException {
+		if (out == null)
+			throw new IOException("MCA journal is closed: " + journalFile);
+		
+		final Entry entry = new Entry(System.currentTimeMillis(), videoId, state, serverUrl, contentAnalysisRequired);
+		entries.put(videoId, entry);
+
+		out.write((entry.toLine() + "\n").getBytes("UTF-8"));
+		out.flush();
+		out.getFD().sync();
+		numLines++;
+
+		if (numLines > 2 * entries.size() + 1000) {
+			try {
+				compact();
+			} catch (IOException e) {
+				// the entry was recorded; the journal just stays longer
+				System.err.println("MCAJournal: could not compact " + journalFile + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Closes the journal.
+	 */
+	public synchronized void close() {
+		try {
+			if (out != null)
+				out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		out = null;
+	}
+
+	/**
+	 * @return True iff the entry has expired
+	 */
+	private boolean isExpired(Entry entry, long now) {
+		final long age = now - entry.time;
+		return entry.state == State.FAILED ? age > retryAfter : age > retention;
+	}
+
+	/**
+	 * Helper method to read the latest entry of each video from the journal.
+	 */
+	private void replay() throws IOException {
+		if (!journalFile.exists())
+			return;
+
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final Entry entry = Entry.fromLine(line);
+				if (entry != null)
+					entries.put(entry.videoId, entry);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Helper method to rewrite the journal with only the live entries. The
+	 * new journal is written to a temporary file and renamed over the old one.
+	 * The journal is reopened for appending even if it could not be replaced.
+	 */
+	private void compact() throws IOException {
+		// the old journal is closed first, since an open file cannot be renamed over on some platforms
+		close();
+		try {
+			final long now = System.currentTimeMillis();
+			final File tmp = new File(journalFile.getPath() + ".tmp");
+			final FileOutputStream tmpOut = new FileOutputStream(tmp);
+			try {
+				final StringBuilder sb = new StringBuilder();
+				for (Entry entry : new ArrayList<Entry>(entries.values())) {
+					if (isExpired(entry, now)) {
+						entries.remove(entry.videoId);
+						continue;
+					}
+					sb.append(entry.toLine()).append('\n');
+				}
+				tmpOut.write(sb.toString().getBytes("UTF-8"));
+				tmpOut.getFD().sync();
+			} finally {
+				tmpOut.close();
+			}
+
+			if (!tmp.renameTo(journalFile)) {
+				journalFile.delete();
+				if (!tmp.renameTo(journalFile))
+					throw new IOException("Could not replace journal " + journalFile);
+			}
+		} finally {
+			// after a failure, the next attempt waits until as many lines are appended again
+			numLines = entries.size();
+			out = new FileOutputStream(journalFile, true);
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates MCA tasks between nodes that share an index storage.
+ *
+ * A node claims a video by creating its lease file in the "leases"
+ * directory, holding the node's ID. While the task runs, the node renews the
+ * lease by touching the file; a lease that has not been renewed for the lease
+ * duration belongs to a node that died and may be broken by another node.
+ * When the MCA results are posted, a done marker is left next to the lease,
+ * so other nodes do not index the video again until the marker expires.
+ *
+ * Claims rely on atomic file creation and renaming only, which NFS provides.
+ * Breaking a stale lease renames it to a file unique to the breaking node;
+ * if two nodes break the same lease at once, the one that finds a fresh lease
+ * in its hands puts it back.
+ *
+ * A node that fails to renew a lease in time (e.g., a long pause) may find
+ * it broken by another node; it then drops the lease and tells its
+ * {@link Listener}, so the task of the video stops.
+ */
+public class MCALeases {
+
+	/** Outcome of a claim */
+	public enum Claim {
+		/** The lease is held by this node */
+		CLAIMED,
+		/** The lease is held by another node */
+		HELD,
+		/** The video has been indexed recently by some node */
+		DONE
+	}
+
+	/** Callback for leases lost by this node. */
+	public interface Listener {
+		/**
+		 * Called when the lease of a video was broken by another node, which
+		 * indexes the video from now on.
+		 *
+		 * @param videoId The video ID
+		 */
+		void onLeaseLost(String videoId);
+	}
+
+	private static final String LEASE_EXTENSION = ".lease";
+	private static final String DONE_EXTENSION = ".done";
+
+	private final File dir;
+	private final String nodeId;
+	private final long leaseDuration;
+	private final long doneRetention;
+	/** Optional (null) listener */
+	private final Listener listener;
+
+	/** Videos whose leases are held by this node */
+	private final Set<String> held = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final ScheduledExecutorService renewer;
+
+	/**
+	 * Creates the lease directory if necessary and starts renewing leases.
+	 *
+	 * @param dir The lease directory in the shared index storage
+	 * @param nodeId The ID of this node, unique among the nodes
+	 * @param leaseDuration Time (ms) after which a lease that is not renewed expires
+	 * @param doneRetention Time (ms) after which a done marker expires
+	 * @param listener Optional (null) listener for lost leases
+	 */
+	public MCALeases(File dir, String nodeId, long leaseDuration, long doneRetention, Listener listener) {
+		this.dir = dir;
+		this.nodeId = nodeId;
+		this.leaseDuration = leaseDuration;
+		this.doneRetention = doneRetention;
+		this.listener = listener;
+
+		if (!dir.exists())
+			dir.mkdirs();
+
+		renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "LLIndexer-lease-renewer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final long period = Math.max(leaseDuration / 3, 1);
+		renewer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				renewAll();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/** @return The ID of this node */
+	public String nodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Tries to claim the lease of a video.
+	 *
+	 * @param videoId The video ID
+	 * @return Whether the lease is now held by this node, held by another node,
+	 *         or the video is done
+	 */
+	public Claim claim(String videoId) {
+		if (isDone(videoId))
+			return Claim.DONE;
+
+		final File lease = leaseFile(videoId);
+		for (int attempt = 0; attempt < 2; attempt++) {
+			try {
+				if (lease.createNewFile()) {
+					writeOwner(lease);
+					held.add(videoId);
+					// the previous holder may have finished between the first check and the creation
+					if (isDone(videoId)) {
+						release(videoId);
+						return Claim.DONE;
+					}
+					return Claim.CLAIMED;
+				}
+			} catch (IOException e) {
+				System.err.println("MCALeases: cannot create lease " + lease + ": " + e);
+				return Claim.HELD;
+			}
+
+			final String owner = readOwner(lease);
+			if (nodeId.equals(owner)) {
+				// e.g., resuming after a restart of this node
+				lease.setLastModified(System.currentTimeMillis());
+				held.add(videoId);
+				return Claim.CLAIMED;
+			}
+			if (!isStale(lease) || !breakLease(lease))
+				return Claim.HELD;
+			System.err.println("MCALeases: Broke stale lease of " + videoId + " held by " + owner);
+		}
+		return Claim.HELD;
+	}
+
+	/**
+	 * @param videoId The video ID
+	 * @return True iff another node holds a live lease on the video
+	 */
+	public boolean isHeldElsewhere(String videoId) {
+		final File lease = leaseFile(videoId);
+		return lease.exists() && !isStale(lease) && !nodeId.equals(readOwner(lease));
+	}
+
+	/**
+	 * @param videoId The video ID
+	 * @return True iff the video has been indexed and its done marker has not expired
+	 */
+	public boolean isDone(String videoId) {
+		final File done = new File(dir, fileName(videoId) + DONE_EXTENSION);
+		final long lastModified = done.lastModified();
+		if (lastModified == 0)
+			return false;
+		if (System.currentTimeMillis() - lastModified <= doneRetention)
+			return true;
+		done.delete();
+		return false;
+	}
+
+	/**
+	 * Leaves a done marker for a video, so other nodes skip it.
+	 *
+	 * @param videoId The video ID
+	 */
+	public void markDone(String videoId) {
+		final File done = new File(dir, fileName(videoId) + DONE_EXTENSION);
+		try {
+			if (!done.createNewFile())
+				done.setLastModified(System.currentTimeMillis());
+		} catch (IOException e) {
+			System.err.println("MCALeases: cannot mark " + videoId + " as done: " + e);
+		}
+	}
+
+	/**
+	 * Releases the lease of a video if this node holds it.
+	 *
+	 * @param videoId The video ID
+	 */
+	public void release(String videoId) {
+		if (!held.remove(videoId))
+			return;
+		final File lease = leaseFile(videoId);
+		if (nodeId.equals(readOwner(lease)))
+			lease.delete();
+	}
+
+	/**
+	 * Stops renewing leases. Leases still held expire after the lease
+	 * duration, unless this node claims them again after a restart.
+	 */
+	public void shutdown() {
+		renewer.shutdownNow();
+	}
+
+	/**
+	 * Helper method to renew the leases held by this node. A lease that was
+	 * broken by another node is dropped and reported to the listener.
+	 */
+	private void renewAll() {
+		final long now = System.currentTimeMillis();
+		for (String videoId : held) {
+			final File lease = leaseFile(videoId);
+			if (!nodeId.equals(readOwner(lease)) || !lease.setLastModified(now)) {
+				System.err.println("MCALeases: Lost lease of " + videoId);
+				if (held.remove(videoId) && listener != null) {
+					try {
+						listener.onLeaseLost(videoId);
+					} catch (RuntimeException e) {
+						// an exception would stop the renewals of the other leases
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper method to break a stale lease.
+	 *
+	 * @return True iff the lease was broken by this node
+	 */
+	private boolean breakLease(File lease) {
+		final File broken = new File(dir, lease.getName() + "." + fileName(nodeId) + ".broken");
+		if (!lease.renameTo(broken))
+			return false;
+
+		if (!isStale(broken)) {
+			// another node broke the lease first and claimed it in the meantime
+			broken.renameTo(lease);
+			return false;
+		}
+		broken.delete();
+		return true;
+	}
+
+	private boolean isStale(File lease) {
+		final long lastModified = lease.lastModified();
+		return lastModified != 0 && System.currentTimeMillis() - lastModified > leaseDuration;
+	}
+
+	private void writeOwner(File lease) throws IOException {
+		final FileOutputStream out = new FileOutputStream(lease);
+		try {
+			out.write((nodeId + "\n").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return The ID of the node holding the lease, or null if unknown
+	 */
+	private static String readOwner(File lease) {
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(lease), "UTF-8"));
+			try {
+				return reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private File leaseFile(String videoId) {
+		return new File(dir, fileName(videoId) + LEASE_EXTENSION);
+	}
+
+	/**
+	 * @return The ID with all characters that may not be portable in file
+	 *         names replaced by underscores
+	 */
+	private static String fileName(String id) {
+		return id.replaceAll("[^A-Za-z0-9_.-]", "_");
+	}
+}
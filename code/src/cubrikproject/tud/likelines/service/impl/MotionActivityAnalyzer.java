@@ -1,8 +1,6 @@
 package cubrikproject.tud.likelines.service.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 
 /**
@@ -25,12 +23,28 @@ public class MotionActivityAnalyzer {
 	/** Clipping threshold */
 	private final int CLIPPING_THRESHOLD = 32;
 	
+	/** Default time budget (ms) of an analysis */
+	public static final long DEFAULT_TIMEOUT = 60 * 60 * 1000;
+	
+	/** supervises the motionActivity processes */
+	private final ProcessSupervisor supervisor;
+	
 	/**
 	 * Constructs a MotionActivityAnalyzer object.
 	 * @param motionActivityPath Path to motionActivity
 	 */
 	public MotionActivityAnalyzer(String motionActivityPath) {
+		this(motionActivityPath, DEFAULT_TIMEOUT);
+	}
+	
+	/**
+	 * Constructs a MotionActivityAnalyzer object.
+	 * @param motionActivityPath Path to motionActivity
+	 * @param timeout Time budget (ms) after which an analysis is killed
+	 */
+	public MotionActivityAnalyzer(String motionActivityPath, long timeout) {
 		this.motionActivityPath = motionActivityPath;
+		this.supervisor = new ProcessSupervisor("motionActivity", timeout);
 	}
 	
 	/**
@@ -38,18 +52,20 @@ public class MotionActivityAnalyzer {
 	 * 
 	 * @param source The video to be analyzed
 	 * @return The results of the analysis
-	 * @throws IOException
+	 * @throws IOException When the process cannot be started, fails or times out
+	 * @throws InterruptedException When interrupted (the process is killed)
 	 */
-	public double[] analyze(String source) throws IOException {
+	public double[] analyze(String source) throws IOException, InterruptedException {
 		final ProcessBuilder pb = new ProcessBuilder(motionActivityPath, source);
 		
 		final Process proc = pb.start();
-		BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-		String line;
+		final ProcessSupervisor.Result result = supervisor.waitFor(proc, true);
+		if (result.exitValueOrThrow() != 0)
+			throw new IOException(result.toString());
 		
-		// read proc's STDOUT
+		// parse proc's STDOUT
 		ArrayList<Double> values = new ArrayList<Double>();
-		while ((line = br.readLine()) != null) {
+		for (String line : result.output) {
 			values.add(Double.parseDouble(line));
 		}
 		
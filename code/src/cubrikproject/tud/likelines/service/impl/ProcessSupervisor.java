@@ -0,0 +1,253 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import cubrikproject.tud.likelines.util.Threads;
+
+/**
+ * Supervises external tool processes (ffmpeg, motionActivity).
+ *
+ * Both output streams of a process are drained, so a chatty process cannot
+ * block on a full pipe, and the process is killed when it exceeds its
+ * wall-clock budget or when the waiting thread is interrupted (e.g., when
+ * its MCA task is cancelled). The outcome is reported as an {@link Result}
+ * with the reason the process ended and the last lines of its error output.
+ */
+public class ProcessSupervisor {
+
+	/** Why a supervised process ended */
+	public enum ExitReason {
+		/** The process exited by itself */
+		EXITED,
+		/** The process was killed after exceeding its time budget */
+		TIMED_OUT,
+		/** The process was killed because the waiting thread was interrupted */
+		CANCELLED
+	}
+
+	/** The outcome of a supervised process. */
+	public static class Result {
+		public final String tool;
+		public final ExitReason reason;
+		/** The exit value, or -1 if the process was killed */
+		public final int exitValue;
+		/** The lines of standard output, if captured, otherwise null */
+		public final List<String> output;
+		/** The last lines of standard error */
+		public final List<String> errorTail;
+
+		Result(String tool, ExitReason reason, int exitValue, List<String> output, List<String> errorTail) {
+			this.tool = tool;
+			this.reason = reason;
+			this.exitValue = exitValue;
+			this.output = output;
+			this.errorTail = errorTail;
+		}
+
+		/**
+		 * @return The exit value of a process that exited by itself
+		 * @throws IOException When the process timed out
+		 * @throws InterruptedException When the process was cancelled
+		 */
+		public int exitValueOrThrow() throws IOException, InterruptedException {
+			switch (reason) {
+				case TIMED_OUT:
+					throw new IOException(this.toString());
+				case CANCELLED:
+					throw new InterruptedException(this.toString());
+				default:
+					return exitValue;
+			}
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder(tool).append(": ").append(reason);
+			if (reason == ExitReason.EXITED)
+				sb.append(" with exit value ").append(exitValue);
+			if (exitValue != 0 && !errorTail.isEmpty())
+				sb.append(", last error output: ").append(errorTail.get(errorTail.size() - 1));
+			return sb.toString();
+		}
+	}
+
+	/** Number of lines of standard error kept for the result */
+	private static final int ERROR_TAIL_LINES = 20;
+
+	/** Time (ms) to wait for the output of a killed process to be drained */
+	private static final long DRAIN_AFTER_KILL = 1000;
+
+	/** Shared threads draining streams and waiting for processes (created on first use) */
+	private static ExecutorService _io;
+
+	/**
+	 * @return The shared threads draining streams and waiting for processes
+	 */
+	private static synchronized ExecutorService io() {
+		if (_io == null)
+			_io = Executors.newCachedThreadPool(Threads.ioThreadFactory("LLIndexer-process-"));
+		return _io;
+	}
+
+	private final String tool;
+	private final long timeout;
+
+	/**
+	 * Constructs a supervisor for a tool.
+	 *
+	 * @param tool The name of the tool, used in reports
+	 * @param timeout The wall-clock budget (ms) of a single process
+	 */
+	public ProcessSupervisor(String tool, long timeout) {
+		this.tool = tool;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Waits for a process to end, draining both of its streams, and kills it
+	 * when it exceeds its budget or when the calling thread is interrupted.
+	 * In the latter case the interrupt status is restored.
+	 *
+	 * @param proc The process
+	 * @param captureOutput Whether to keep the lines of standard output
+	 * @return The outcome of the process
+	 */
+	public Result waitFor(Process proc, boolean captureOutput) {
+		return waitFor(proc, captureOutput, timeout);
+	}
+	
+	/**
+	 * Waits for a process like {@link #waitFor(Process, boolean)}, but with
+	 * a budget of its own, e.g., for a process doing the work of several.
+	 * 
+	 * @param proc The process
+	 * @param captureOutput Whether to keep the lines of standard output
+	 * @param timeout The wall-clock budget (ms) of the process
+	 * @return The outcome of the process
+	 */
+	public Result waitFor(final Process proc, boolean captureOutput, long timeout) {
+		final List<String> output = captureOutput ? new ArrayList<String>() : null;
+		final LinkedList<String> errorTail = new LinkedList<String>();
+
+		final ExecutorService io = io();
+		final Future<?> stdout = io.submit(drain(proc.getInputStream(), output, 0));
+		final Future<?> stderr = io.submit(drain(proc.getErrorStream(), errorTail, ERROR_TAIL_LINES));
+
+		final CountDownLatch exited = new CountDownLatch(1);
+		io.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					proc.waitFor();
+				} catch (InterruptedException e) {
+				}
+				exited.countDown();
+			}
+		});
+
+		final long deadline = System.currentTimeMillis() + timeout;
+		ExitReason reason = ExitReason.EXITED;
+		try {
+			if (!exited.await(timeout, TimeUnit.MILLISECONDS))
+				reason = ExitReason.TIMED_OUT;
+		} catch (InterruptedException e) {
+			reason = ExitReason.CANCELLED;
+		}
+
+		// Process.destroy() only kills the process itself, not processes it spawned
+		if (reason != ExitReason.EXITED)
+			proc.destroy();
+
+		final long drainTimeout = (reason == ExitReason.EXITED)
+			? Math.max(deadline - System.currentTimeMillis(), DRAIN_AFTER_KILL)
+			: DRAIN_AFTER_KILL;
+		awaitDrained(stdout, drainTimeout);
+		awaitDrained(stderr, DRAIN_AFTER_KILL);
+
+		int exitValue = -1;
+		if (reason == ExitReason.EXITED)
+			exitValue = proc.exitValue();
+
+		final Result result = new Result(tool, reason, exitValue, copy(output), copy(errorTail));
+		if (reason != ExitReason.EXITED)
+			System.err.println(">>> ProcessSupervisor: " + result);
+		if (reason == ExitReason.CANCELLED)
+			Thread.currentThread().interrupt();
+		return result;
+	}
+
+	/**
+	 * Helper method to create a task reading a stream until its end.
+	 *
+	 * @param in The stream
+	 * @param lines Receives the lines read (may be null)
+	 * @param maxLines The number of last lines to keep (0 for all)
+	 */
+	private static Runnable drain(final InputStream in, final List<String> lines, final int maxLines) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				final BufferedReader br = new BufferedReader(new InputStreamReader(in));
+				try {
+					String line;
+					while ((line = br.readLine()) != null) {
+						if (lines == null)
+							continue;
+						synchronized (lines) {
+							lines.add(line);
+							if (maxLines > 0 && lines.size() > maxLines)
+								lines.remove(0);
+						}
+					}
+				} catch (IOException e) {
+					// the stream is closed when the process is killed
+				} finally {
+					try {
+						br.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Helper method to copy lines that may still be appended to by a drainer.
+	 */
+	private static List<String> copy(List<String> lines) {
+		if (lines == null)
+			return null;
+		synchronized (lines) {
+			return new ArrayList<String>(lines);
+		}
+	}
+
+	/**
+	 * Helper method to wait until a stream has been drained.
+	 */
+	private static void awaitDrained(Future<?> drainer, long timeout) {
+		try {
+			drainer.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// e.g., a spawned process keeps the stream open
+			drainer.cancel(true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+}
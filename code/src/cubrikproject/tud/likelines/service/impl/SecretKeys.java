@@ -0,0 +1,232 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import cubrikproject.tud.likelines.util.Threads;
+import cubrikproject.tud.likelines.webservice.LikeLinesWebService;
+
+/**
+ * The secret keys of the LikeLines servers, validated in the background.
+ *
+ * All keys are validated in parallel when the indexer starts, so a server
+ * that is down does not delay the others (or the activation of the bundle).
+ * Looking up a key waits for the validation of that server only. Outcomes
+ * are cached on disk together with a hash of the key, so after a restart a
+ * key that was validated recently is available at once.
+ */
+class SecretKeys {
+
+	private final static Log _log = LogFactory.getLog(SecretKeys.class);
+
+	/** Default time (ms) for which a validation outcome is cached */
+	static final long DEFAULT_CACHE_TTL = 24 * 60 * 60 * 1000;
+
+	/** Mapping from LikeLines server URLs to their (unvalidated) secret keys */
+	private final Map<String, String> keys;
+
+	/** Outcome of the validation per server */
+	private final Map<String, Future<Boolean>> validations = new HashMap<String, Future<Boolean>>();
+
+	private final File cacheFile;
+	private final long cacheTtl;
+	private final Properties cache = new Properties();
+
+	private final ExecutorService validator;
+
+	/**
+	 * Starts validating the keys that have no recent outcome in the cache.
+	 *
+	 * @param keys Mapping from LikeLines server URLs to their secret keys
+	 * @param cacheFile The file caching the validation outcomes
+	 * @param cacheTtl Time (ms) for which an outcome is cached
+	 */
+	SecretKeys(Map<String, String> keys, File cacheFile, long cacheTtl) {
+		this.keys = keys;
+		this.cacheFile = cacheFile;
+		this.cacheTtl = cacheTtl;
+		loadCache();
+
+		validator = Executors.newFixedThreadPool(Math.max(keys.size(), 1), Threads.ioThreadFactory("LLIndexer-keys-"));
+
+		for (final Entry<String, String> kv : keys.entrySet()) {
+			final String server = kv.getKey();
+			final String key = kv.getValue();
+
+			final Boolean cached = cachedOutcome(server, key);
+			if (cached != null) {
+				final FutureTask<Boolean> outcome = new FutureTask<Boolean>(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return cached;
+					}
+				});
+				outcome.run();
+				validations.put(server, outcome);
+				if (!cached)
+					_log.warn("LLIndexer: testSecretKeys: incorrect key for server (cached): " + server);
+			}
+			else {
+				validations.put(server, validator.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return validate(server, key);
+					}
+				}));
+			}
+		}
+		validator.shutdown();
+	}
+
+	/**
+	 * Returns the secret key of a server, waiting for its validation if
+	 * necessary.
+	 *
+	 * @param server The URL of the LikeLines server
+	 * @return The secret key, or null if it is missing or invalid
+	 * @throws InterruptedException When interrupted while waiting
+	 */
+	String get(String server) throws InterruptedException {
+		final Future<Boolean> validation = validations.get(server);
+		if (validation == null)
+			return null;
+
+		try {
+			return validation.get() ? keys.get(server) : null;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Stops the validations that are still running.
+	 */
+	void shutdown() {
+		validator.shutdownNow();
+	}
+
+	/**
+	 * Helper method to test a key against its server. Only definite outcomes
+	 * are cached; a server that cannot be reached is tested again on the next
+	 * start.
+	 *
+	 * @return True iff the key is valid
+	 */
+	private boolean validate(String server, String key) {
+		final LikeLinesWebService llserver;
+		try {
+			llserver = new LikeLinesWebService(server);
+		} catch (MalformedURLException e) {
+			_log.warn("LLIndexer: testSecretKeys: malformed URL in server: " + server);
+			return false;
+		}
+
+		try {
+			final boolean valid = llserver.testKey(key);
+			if (!valid)
+				_log.warn("LLIndexer: testSecretKeys: incorrect key for server: " + server);
+			storeOutcome(server, key, valid);
+			return valid;
+		} catch (IOException e) {
+			_log.warn("LLIndexer: testSecretKeys: I/O error, server down? " + server);
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * @return The cached outcome for the key, or null if there is no recent one
+	 */
+	private synchronized Boolean cachedOutcome(String server, String key) {
+		final String entry = cache.getProperty(server);
+		if (entry == null)
+			return null;
+
+		// entry: <time validated> <hash of key> <outcome>
+		final String[] fields = entry.split(" ");
+		try {
+			if (fields.length != 3 || !fields[1].equals(hash(key))
+					|| System.currentTimeMillis() - Long.parseLong(fields[0]) > cacheTtl)
+				return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return Boolean.valueOf(fields[2]);
+	}
+
+	/**
+	 * Helper method to cache an outcome. The cache is written to a temporary
+	 * file first and then renamed.
+	 */
+	private synchronized void storeOutcome(String server, String key, boolean valid) {
+		cache.setProperty(server, System.currentTimeMillis() + " " + hash(key) + " " + valid);
+
+		final File tmp = new File(cacheFile.getPath() + ".tmp");
+		try {
+			final OutputStream out = new FileOutputStream(tmp);
+			try {
+				cache.store(out, "Validated LikeLines secret keys");
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(cacheFile)) {
+				cacheFile.delete();
+				if (!tmp.renameTo(cacheFile))
+					throw new IOException("Could not rename " + tmp + " to " + cacheFile);
+			}
+		} catch (IOException e) {
+			_log.warn("LLIndexer: cannot cache secret key validation: " + e);
+		}
+	}
+
+	private void loadCache() {
+		if (!cacheFile.exists())
+			return;
+		try {
+			final InputStream in = new FileInputStream(cacheFile);
+			try {
+				cache.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			_log.warn("LLIndexer: cannot read secret key cache: " + e);
+		}
+	}
+
+	/**
+	 * @return The SHA-1 hash of a key, so the cache does not reveal the key
+	 */
+	private static String hash(String key) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return new String(Hex.encodeHex(digest.digest(key.getBytes("UTF-8"))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
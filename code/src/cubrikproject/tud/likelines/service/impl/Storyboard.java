@@ -0,0 +1,362 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The Storyboard class builds a storyboard of a video: a downscaled frame
+ * every few seconds, packed into a single file, from which frames near any
+ * timestamp are served without starting a process.
+ *
+ * Basically, it is a wrapper for:
+ *   ffmpeg -y -i SRC -an -vf fps=1/INTERVAL,scale=-2:HEIGHT -q:v QUALITY -f mjpeg TMP
+ *
+ * after which the JPEGs in TMP are indexed and packed, big-endian:
+ * <pre>
+ * int     magic ("LLSB")
+ * short   version
+ * double  interval (seconds) between frames
+ * int     frames, int[frames] JPEG lengths
+ * byte[]  the JPEGs, back to back
+ * </pre>
+ */
+public class Storyboard {
+	/** path to the binary */
+	private final String ffmpegPath;
+
+	/** File signature: "LLSB" */
+	private static final int MAGIC = 0x4C4C5342;
+
+	/** Current format version */
+	private static final short VERSION = 1;
+
+	/** Size (bytes) of the header preceding the JPEG lengths */
+	private static final int HEADER_SIZE = 4 + 2 + 8 + 4;
+
+	/** Default interval (s) between frames */
+	public static final double DEFAULT_INTERVAL = 2;
+
+	/** Default height (pixels) of the frames */
+	public static final int DEFAULT_HEIGHT = 240;
+
+	/** Default JPEG quality, from 2 (best) to 31 (smallest) */
+	public static final int DEFAULT_QUALITY = 5;
+
+	/** Default time budget (ms) of building a storyboard */
+	public static final long DEFAULT_TIMEOUT = 60 * 60 * 1000;
+
+	private final double interval;
+	private final int height;
+	private final int quality;
+
+	/** supervises the ffmpeg processes */
+	private final ProcessSupervisor supervisor;
+
+	/**
+	 * Constructs a Storyboard object.
+	 * @param ffmpegPath Path to ffmpeg
+	 * @param interval Interval (s) between frames
+	 * @param height Height (pixels) of the frames
+	 * @param quality JPEG quality, from 2 (best) to 31 (smallest)
+	 * @param timeout Time budget (ms) after which building a storyboard is killed
+	 */
+	public Storyboard(String ffmpegPath, double interval, int height, int quality, long timeout) {
+		if (interval <= 0 || height <= 0)
+			throw new IllegalArgumentException("Interval and height need to be positive");
+		this.ffmpegPath = ffmpegPath;
+		this.interval = interval;
+		this.height = height;
+		this.quality = Math.max(2, Math.min(31, quality));
+		this.supervisor = new ProcessSupervisor("ffmpeg (storyboard)", timeout);
+	}
+
+	/**
+	 * Starts writing the frames of a video as a stream of JPEGs.
+	 *
+	 * @param source The video
+	 * @param destination The location to store the stream
+	 * @return A Process handle
+	 * @throws IOException
+	 */
+	public Process extract(String source, String destination) throws IOException {
+		final String filter = String.format(Locale.US, "fps=1/%s,scale=-2:%d", interval, height);
+		final ProcessBuilder pb = new ProcessBuilder(ffmpegPath, "-y", "-i", source, "-an",
+				"-vf", filter, "-q:v", "" + quality, "-f", "mjpeg", destination);
+		return pb.start();
+	}
+
+	/**
+	 * Builds the storyboard of a video (blocking). The storyboard is
+	 * written to a temporary file first and then renamed, so readers never
+	 * see a partially written storyboard.
+	 *
+	 * @param source The video
+	 * @param destination The storyboard file
+	 * @return The number of frames in the storyboard
+	 * @throws IOException When the process fails or times out, or its output cannot be packed
+	 * @throws InterruptedException When interrupted (the process is killed)
+	 */
+	public int buildAndWait(String source, File destination) throws IOException, InterruptedException {
+		final File dir = destination.getAbsoluteFile().getParentFile();
+		final File stream = File.createTempFile(destination.getName(), ".mjpeg.tmp", dir);
+		final File tmp = File.createTempFile(destination.getName(), ".tmp", dir);
+		try {
+			if (supervisor.waitFor(extract(source, stream.getPath()), false).exitValueOrThrow() != 0)
+				throw new IOException("Building the storyboard failed: " + source);
+
+			final int[] lengths = scan(stream);
+			if (lengths.length == 0)
+				throw new IOException("Storyboard has no frames: " + source);
+			pack(stream, lengths, tmp);
+
+			if (!tmp.renameTo(destination)) {
+				// renaming onto an existing file fails on some platforms
+				destination.delete();
+				if (!tmp.renameTo(destination))
+					throw new IOException("Could not rename " + tmp + " to " + destination);
+			}
+			return lengths.length;
+		}
+		finally {
+			stream.delete();
+			tmp.delete();
+		}
+	}
+
+	private void pack(File stream, int[] lengths, File destination) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destination)));
+		final InputStream in = new BufferedInputStream(new FileInputStream(stream));
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeDouble(interval);
+			out.writeInt(lengths.length);
+			for (int length : lengths)
+				out.writeInt(length);
+
+			final byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				out.write(buf, 0, n);
+		}
+		finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Splits a stream of JPEGs, walking the marker segments of each image
+	 * since their payloads may contain the bytes of a start-of-image marker.
+	 *
+	 * @param stream The stream
+	 * @return The length of each JPEG
+	 * @throws IOException When the stream is not a sequence of JPEGs
+	 */
+	static int[] scan(File stream) throws IOException {
+		final List<Integer> lengths = new ArrayList<Integer>();
+		final CountingInput in = new CountingInput(new BufferedInputStream(new FileInputStream(stream)));
+		try {
+			int b;
+			while ((b = in.read()) != -1) {
+				final long start = in.position - 1;
+				if (b != 0xFF || in.readByte() != 0xD8)
+					throw new IOException("Not a JPEG at offset " + start + ": " + stream);
+				skipImage(in);
+				lengths.add((int) (in.position - start));
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		final int[] res = new int[lengths.size()];
+		for (int i = 0; i < res.length; i++)
+			res[i] = lengths.get(i);
+		return res;
+	}
+
+	/** Skips the segments of an image, up to and including its end-of-image marker. */
+	private static void skipImage(CountingInput in) throws IOException {
+		int marker = in.readMarker();
+		while (marker != 0xD9) {
+			if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+				// markers without a payload
+				marker = in.readMarker();
+				continue;
+			}
+
+			final int length = (in.readByte() << 8) | in.readByte();
+			in.skipFully(length - 2);
+			if (marker != 0xDA) {
+				marker = in.readMarker();
+				continue;
+			}
+
+			// entropy-coded data: 0xFF is followed by a stuffed 0x00 or a restart marker
+			while (true) {
+				if (in.readByte() != 0xFF)
+					continue;
+				int next;
+				while ((next = in.readByte()) == 0xFF)
+					;
+				if (next != 0x00 && (next < 0xD0 || next > 0xD7)) {
+					marker = next;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the index of a storyboard.
+	 *
+	 * @param file The storyboard file
+	 * @return The index
+	 * @throws IOException When the file cannot be read or is not a storyboard
+	 */
+	public static Index readIndex(File file) throws IOException {
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a storyboard: " + file);
+			final short version = in.readShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported storyboard version: " + version);
+			final double interval = in.readDouble();
+			final int frames = in.readInt();
+			if (frames <= 0 || frames > (in.length() - HEADER_SIZE) / 4)
+				throw new IOException("Invalid storyboard: " + file);
+
+			final long[] offsets = new long[frames + 1];
+			offsets[0] = HEADER_SIZE + 4L * frames;
+			for (int i = 0; i < frames; i++)
+				offsets[i + 1] = offsets[i] + in.readInt();
+			if (offsets[frames] > in.length())
+				throw new IOException("Truncated storyboard: " + file);
+			return new Index(file, interval, offsets);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The index of a storyboard file.
+	 */
+	public static class Index {
+		public final File file;
+		/** Interval (s) between frames */
+		public final double interval;
+		/** Offset of each JPEG, followed by the end of the last one */
+		private final long[] offsets;
+
+		Index(File file, double interval, long[] offsets) {
+			this.file = file;
+			this.interval = interval;
+			this.offsets = offsets;
+		}
+
+		/**
+		 * @return The number of frames
+		 */
+		public int size() {
+			return offsets.length - 1;
+		}
+
+		/**
+		 * @param timestamp A timestamp in seconds
+		 * @return The frame nearest to the timestamp
+		 */
+		public int nearest(double timestamp) {
+			final long frame = Math.round(timestamp / interval);
+			return (int) Math.max(0, Math.min(size() - 1, frame));
+		}
+
+		/**
+		 * Reads frames from the storyboard.
+		 *
+		 * @param frames The frames to read
+		 * @return The JPEG of each frame
+		 * @throws IOException When the storyboard cannot be read
+		 */
+		public byte[][] read(int[] frames) throws IOException {
+			final byte[][] res = new byte[frames.length][];
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				for (int i = 0; i < frames.length; i++) {
+					res[i] = new byte[(int) (offsets[frames[i] + 1] - offsets[frames[i]])];
+					in.seek(offsets[frames[i]]);
+					in.readFully(res[i]);
+				}
+			}
+			finally {
+				in.close();
+			}
+			return res;
+		}
+	}
+
+	/** Byte input that keeps track of its position. */
+	private static class CountingInput {
+		private final InputStream in;
+		long position;
+
+		CountingInput(InputStream in) {
+			this.in = in;
+		}
+
+		int read() throws IOException {
+			final int b = in.read();
+			if (b != -1)
+				position++;
+			return b;
+		}
+
+		int readByte() throws IOException {
+			final int b = read();
+			if (b == -1)
+				throw new EOFException("Truncated JPEG at offset " + position);
+			return b;
+		}
+
+		/** Reads a marker, skipping fill bytes. */
+		int readMarker() throws IOException {
+			if (readByte() != 0xFF)
+				throw new IOException("Expected a JPEG marker at offset " + (position - 1));
+			int marker;
+			while ((marker = readByte()) == 0xFF)
+				;
+			return marker;
+		}
+
+		void skipFully(long n) throws IOException {
+			while (n > 0) {
+				final long skipped = in.skip(n);
+				if (skipped <= 0) {
+					readByte();
+					n--;
+				}
+				else {
+					position += skipped;
+					n -= skipped;
+				}
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+}
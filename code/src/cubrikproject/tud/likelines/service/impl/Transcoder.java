@@ -1,8 +1,6 @@
 package cubrikproject.tud.likelines.service.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 
 /**
  * The Transcoder class converts downloaded videos into a specific format required by the motion analysis tool.
@@ -15,13 +13,29 @@ import java.io.InputStreamReader;
 public class Transcoder {
 	/** path to the binary */
 	private final String ffmpegPath;
+	
+	/** Default time budget (ms) of a transcode */
+	public static final long DEFAULT_TIMEOUT = 60 * 60 * 1000;
+	
+	/** supervises the ffmpeg processes */
+	private final ProcessSupervisor supervisor;
 
 	/**
 	 * Constructs a Transcoder object.
 	 * @param ffmpegPath Path to ffmpeg
 	 */
 	public Transcoder(String ffmpegPath) {
+		this(ffmpegPath, DEFAULT_TIMEOUT);
+	}
+	
+	/**
+	 * Constructs a Transcoder object.
+	 * @param ffmpegPath Path to ffmpeg
+	 * @param timeout Time budget (ms) after which a transcode is killed
+	 */
+	public Transcoder(String ffmpegPath, long timeout) {
 		this.ffmpegPath = ffmpegPath;
+		this.supervisor = new ProcessSupervisor("ffmpeg (transcode)", timeout);
 	}
 	
 	/**
@@ -43,13 +57,11 @@ public class Transcoder {
 	 * @param source The video to be transcoded
 	 * @param destination The location to store the transcoded video
 	 * @return The exit value of the process
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * @throws IOException When the process cannot be started or times out
+	 * @throws InterruptedException When interrupted (the process is killed)
 	 */
 	public int transcodeAndWait(String source, String destination) throws IOException, InterruptedException {
 		final Process proc = transcode(source, destination);
-		BufferedReader br = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-		while (br.readLine() != null);
-		return proc.waitFor();
+		return supervisor.waitFor(proc, false).exitValueOrThrow();
 	}
 }
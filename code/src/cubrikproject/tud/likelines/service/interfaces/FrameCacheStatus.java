@@ -0,0 +1,48 @@
+package cubrikproject.tud.likelines.service.interfaces;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the metrics of the in-memory cache of encoded key frames,
+ * counted since the indexer was activated.
+ */
+public class FrameCacheStatus {
+
+	public final long hits;
+	public final long misses;
+	/** Number of frames dropped to stay within the budget */
+	public final long evictions;
+	/** Number of frames dropped since their files changed */
+	public final long invalidations;
+	/** Number of frames cached */
+	public final int entries;
+	/** Approximate size (bytes) of the cached frames */
+	public final long bytes;
+	/** Maximum size (bytes) of the cached frames */
+	public final long budget;
+
+	public FrameCacheStatus(long hits, long misses, long evictions, long invalidations, int entries, long bytes,
+			long budget) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.invalidations = invalidations;
+		this.entries = entries;
+		this.bytes = bytes;
+		this.budget = budget;
+	}
+
+	/**
+	 * @return The fraction of the requested frames served from the cache
+	 */
+	public double hitRate() {
+		final long requests = hits + misses;
+		return (requests == 0) ? 0 : (double) hits / requests;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "%d frames, %d/%d bytes, hit rate %.1f%% (%d hits, %d misses), %d evicted, %d invalidated",
+				entries, bytes, budget, hitRate() * 100, hits, misses, evictions, invalidations);
+	}
+}
@@ -1,20 +1,81 @@
 package cubrikproject.tud.likelines.service.interfaces;
 
+import java.io.IOException;
 import java.util.List;
 
+import cubrikproject.tud.likelines.webservice.Aggregate;
 import cubrikproject.tud.likelines.webservice.LikeLinesWebService;
 
 public interface LLIndexer {
 	
+	/** Outcome of scheduling an MCA task. */
+	public enum ScheduleStatus {
+		/** The task was queued or started */
+		SCHEDULED,
+		/** The video is being indexed (its priority was raised) or has been indexed already */
+		DUPLICATE,
+		/** The queue is full; the video may be scheduled again later */
+		REJECTED
+	}
+	
+	/**
+	 * Schedules an MCA task for a given video, without knowing its number of
+	 * playback sessions (see {@link #scheduleMCA(String, LikeLinesWebService, boolean, int)}).
+	 * 
+	 * @param videoId The ID of the video for which MCA needs to be performed
+	 * @param llServer The LikeLines webservice to which the MCA needs to be posted
+	 * @param contentAnalysisRequired Flag indicating whether content analysis is required
+	 * @return Whether the task was scheduled, or why not
+	 */
+	public ScheduleStatus scheduleMCA(String videoId, LikeLinesWebService llServer, boolean contentAnalysisRequired);
+	
 	/**
 	 * Schedules an MCA task for a given video.
 	 * 
 	 * @param videoId The ID of the video for which MCA needs to be performed
 	 * @param llServer The LikeLines webservice to which the MCA needs to be posted
 	 * @param contentAnalysisRequired Flag indicating whether content analysis is required
+	 * @param numPlaybacks The number of playback sessions of the video, used to prioritize the task
+	 * @return Whether the task was scheduled, or why not
+	 */
+	public ScheduleStatus scheduleMCA(String videoId, LikeLinesWebService llServer, boolean contentAnalysisRequired, int numPlaybacks);
+
+	/**
+	 * Returns the status of the MCA task of a video: in the pipeline,
+	 * recently ended, or as last recorded in the MCA journal.
+	 *
+	 * @param videoId The ID of the video
+	 * @return The status, or null if the video is not known
 	 */
-	public void scheduleMCA(String videoId, LikeLinesWebService llServer, boolean contentAnalysisRequired);
+	public MCAJobStatus getMCAStatus(String videoId);
 
+	/**
+	 * Returns the status of the MCA tasks in the pipeline.
+	 *
+	 * @return A list of statuses, in no particular order
+	 */
+	public List<MCAJobStatus> getActiveMCAJobs();
+
+	/**
+	 * Returns the backlog and in-flight counts of the MCA pipeline, e.g., to
+	 * throttle crawls.
+	 *
+	 * @return The status of the pipeline
+	 */
+	public MCAQueueStatus getMCAQueueStatus();
+
+	/**
+	 * Returns the aggregate of a video, served from the local snapshot cache
+	 * when available (and revalidated in the background).
+	 * 
+	 * @param llServer The LikeLines webservice that aggregates the sessions
+	 * @param videoId The ID of the video
+	 * @param sketched Whether to summarize the sessions and likes by a sketch
+	 * @return An aggregation of user interaction sessions for the video
+	 * @throws IOException When no aggregate is cached and the server cannot be reached
+	 */
+	public Aggregate aggregate(LikeLinesWebService llServer, String videoId, boolean sketched) throws IOException;
+	
 	/**
 	 * Extracts frames from a video at given timestamps.
 	 * 
@@ -24,5 +85,13 @@ public interface LLIndexer {
 	 * @return A list of base64 encoded JPEGs
 	 */
 	public List<String> extractFrames(String videoId, double[] nKeyFrames);
+	
+	/**
+	 * Returns the hit rate and size of the in-memory cache of the frames
+	 * served by {@link #extractFrames(String, double[])}.
+	 * 
+	 * @return The metrics of the frame cache
+	 */
+	public FrameCacheStatus getFrameCacheStatus();
 
 }
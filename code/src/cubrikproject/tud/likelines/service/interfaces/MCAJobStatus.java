@@ -0,0 +1,93 @@
+package cubrikproject.tud.likelines.service.interfaces;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Snapshot of the status of the MCA task of a video.
+ */
+public class MCAJobStatus {
+
+	/** Where a task is in its life cycle */
+	public enum Phase {
+		/** Waiting for a worker of its stage */
+		QUEUED,
+		/** A worker is running its stage */
+		RUNNING,
+		/** The MCA results have been posted (by this node or another one) */
+		FINISHED,
+		/** A stage failed; the video is retried after it is scheduled again */
+		FAILED,
+		/** Cancelled before it finished, e.g., no longer in demand or indexed by another node */
+		CANCELLED,
+		/** Interrupted (e.g., by a restart); it resumes when the video is scheduled again */
+		UNFINISHED
+	}
+
+	public final String videoId;
+
+	/** The LikeLines server to which the results are posted */
+	public final String serverUrl;
+
+	public final Phase phase;
+
+	/** The stage (FETCH, ANALYZE or POST) the task is queued for, running or last ran, or null */
+	public final String stage;
+
+	/** The last stage completed according to the MCA journal, or null */
+	public final String checkpoint;
+
+	/** Fraction of the stages completed, from 0 to 1 */
+	public final double progress;
+
+	/** Time the task was scheduled (0 if unknown) */
+	public final long scheduledAt;
+
+	/** Time of the last change of the status */
+	public final long updatedAt;
+
+	/** Read-only map from stages to the time (ms) spent waiting in their queues */
+	public final Map<String, Long> waitTimes;
+
+	/** Read-only map from stages to the time (ms) spent running them, including a running stage */
+	public final Map<String, Long> runTimes;
+
+	/** The last error of the task, or null */
+	public final String lastError;
+
+	public MCAJobStatus(String videoId, String serverUrl, Phase phase, String stage, String checkpoint,
+			double progress, long scheduledAt, long updatedAt, Map<String, Long> waitTimes,
+			Map<String, Long> runTimes, String lastError) {
+		this.videoId = videoId;
+		this.serverUrl = serverUrl;
+		this.phase = phase;
+		this.stage = stage;
+		this.checkpoint = checkpoint;
+		this.progress = progress;
+		this.scheduledAt = scheduledAt;
+		this.updatedAt = updatedAt;
+		this.waitTimes = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(waitTimes));
+		this.runTimes = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(runTimes));
+		this.lastError = lastError;
+	}
+
+	/**
+	 * @return True iff the task is in the pipeline
+	 */
+	public boolean isActive() {
+		return phase == Phase.QUEUED || phase == Phase.RUNNING;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder(videoId).append(": ").append(phase);
+		if (stage != null)
+			sb.append(" (").append(stage).append(")");
+		sb.append(String.format(Locale.US, ", %.0f%%", progress * 100));
+		if (lastError != null)
+			sb.append(", last error: ").append(lastError);
+		return sb.toString();
+	}
+}
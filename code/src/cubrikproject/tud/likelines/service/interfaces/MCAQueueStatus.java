@@ -0,0 +1,102 @@
+package cubrikproject.tud.likelines.service.interfaces;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the MCA pipeline of an indexer: the backlog and in-flight
+ * tasks per stage and the outcomes since the indexer was activated.
+ */
+public class MCAQueueStatus {
+
+	/** Snapshot of a single stage */
+	public static class StageStatus {
+		/** FETCH, ANALYZE or POST */
+		public final String stage;
+		public final int workers;
+		/** Number of tasks waiting for a worker */
+		public final int queued;
+		/** Number of tasks being run */
+		public final int running;
+		/** Number of times the stage was run to completion (successfully or not) */
+		public final long completed;
+		/** Average time (ms) a task waited in the queue */
+		public final long averageWaitMillis;
+		/** Average time (ms) a run of the stage took */
+		public final long averageRunMillis;
+
+		public StageStatus(String stage, int workers, int queued, int running, long completed,
+				long averageWaitMillis, long averageRunMillis) {
+			this.stage = stage;
+			this.workers = workers;
+			this.queued = queued;
+			this.running = running;
+			this.completed = completed;
+			this.averageWaitMillis = averageWaitMillis;
+			this.averageRunMillis = averageRunMillis;
+		}
+
+		@Override
+		public String toString() {
+			return stage + ": " + running + "/" + workers + " running, " + queued + " queued";
+		}
+	}
+
+	/** Read-only list of the stages, in pipeline order */
+	public final List<StageStatus> stages;
+
+	/** Number of videos in the pipeline */
+	public final int active;
+
+	/** Maximum number of videos in the pipeline (mcaQueueSize) */
+	public final int capacity;
+
+	/** Number of videos scheduled since activation */
+	public final long scheduled;
+	/** Number of requests ignored since the video was being indexed or has been */
+	public final long duplicates;
+	/** Number of requests rejected since the pipeline was full */
+	public final long rejected;
+	public final long finished;
+	public final long failed;
+	public final long cancelled;
+
+	public MCAQueueStatus(List<StageStatus> stages, int active, int capacity, long scheduled, long duplicates,
+			long rejected, long finished, long failed, long cancelled) {
+		this.stages = Collections.unmodifiableList(stages);
+		this.active = active;
+		this.capacity = capacity;
+		this.scheduled = scheduled;
+		this.duplicates = duplicates;
+		this.rejected = rejected;
+		this.finished = finished;
+		this.failed = failed;
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * @param stage FETCH, ANALYZE or POST
+	 * @return The status of the stage, or null if there is no such stage
+	 */
+	public StageStatus get(String stage) {
+		for (StageStatus status : stages)
+			if (status.stage.equals(stage))
+				return status;
+		return null;
+	}
+
+	/**
+	 * @return The number of tasks waiting for a worker in any stage
+	 */
+	public int backlog() {
+		int res = 0;
+		for (StageStatus status : stages)
+			res += status.queued;
+		return res;
+	}
+
+	@Override
+	public String toString() {
+		return active + "/" + capacity + " videos in the pipeline " + stages;
+	}
+}
@@ -13,6 +13,7 @@ import java.net.URLConnection;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 /**
  * Simple utilities class for AJAX related work
@@ -56,6 +57,21 @@ public class Ajax {
 		return jp.parse(reader);
 	}
 	
+	/**
+	 * Opens a streaming reader on the JSON value at the given URL. The
+	 * caller is responsible for closing the reader.
+	 * 
+	 * @param url
+	 *            URL to JSON resource
+	 * @return JSON reader
+	 * @throws IOException
+	 *             When the resource cannot be retrieved
+	 */
+	public static JsonReader openJSON(URL url) throws IOException {
+		final URLConnection conn = url.openConnection();
+		return new JsonReader(new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8")));
+	}
+	
 	
 	/**
 	 * Posts a JSON value to the given URL.
@@ -12,11 +12,29 @@ public class ArrayFunctions {
 	 * @see <a href="https://github.com/ShinNoNoir/likelines-player/blob/51d6d05a199e2de709fc5b2241e2f736664c10e6/js/likelines.js#L954">JavaScript reference implementation</a>
 	 */
 	public static double[] scaleArray(double[] data, int newSize) {
-		final int n = data.length;
 		double scaledArray[] = new double[newSize];
+		scaleInto(data, data.length, scaledArray, newSize);
+		return scaledArray;
+	}
+	
+	/**
+	 * Resizes the first n elements of an array into a caller-supplied buffer.
+	 * 
+	 * @param data The input array
+	 * @param n The number of elements of the input array to use
+	 * @param out The output buffer (length at least newSize)
+	 * @param newSize The new size of the resized array
+	 * @return The largest absolute value written to the output buffer
+	 * @see #scaleArray(double[], int)
+	 */
+	public static double scaleInto(double[] data, int n, double[] out, int newSize) {
+		double maxAbs = 0;
 		
 		if (n == 0 || newSize == 0) {
 			// zeros(newSize)
+			for (int i = 0; i < newSize; i++) {
+				out[i] = 0;
+			}
 		}
 		else if (n <= 2) {
 			// linspace
@@ -26,9 +44,11 @@ public class ArrayFunctions {
 			
 			double step = (d2-d1) / (numPoints-1);
 			for (int i = 0; i < numPoints-1; i++) {
-				scaledArray[i] = d1 + i*step;
+				final double v = out[i] = d1 + i*step;
+				maxAbs = Math.max(maxAbs, Math.abs(v));
 			}
-			scaledArray[newSize-1] = d2;
+			out[newSize-1] = d2;
+			maxAbs = Math.max(maxAbs, Math.abs(d2));
 		}
 		else {
 			// interpolate
@@ -36,13 +56,15 @@ public class ArrayFunctions {
 			
 			for (int j = 0; j < newSize-1; j++) {
 				double x = j*step;
-				int i = (int) Math.floor(x);
-				scaledArray[j] = data[i] + (x-i) * (data[i+1] - data[i]);
+				int i = (int) x; // x >= 0, so truncation equals floor
+				final double v = out[j] = data[i] + (x-i) * (data[i+1] - data[i]);
+				maxAbs = Math.max(maxAbs, Math.abs(v));
 			}
-			scaledArray[newSize-1] = data[n-1];
+			out[newSize-1] = data[n-1];
+			maxAbs = Math.max(maxAbs, Math.abs(data[n-1]));
 		}
 		
-		return scaledArray;
+		return maxAbs;
 	}
 
 	/**
@@ -56,17 +78,55 @@ public class ArrayFunctions {
 	 */
 	public static double[] projectOntoArray(SmoothedFunction f, Range range, int size) {
 		final double[] smoothed = new double[size];
+		projectInto(f, range, smoothed, size);
+		return smoothed;
+	}
+	
+	/**
+	 * Projects a function onto a caller-supplied buffer.
+	 * 
+	 * @param f The function to project onto an Array
+	 * @param range The range of the function to be projected
+	 * @param out The output buffer (length at least size)
+	 * @param size The number of elements to project
+	 * @return The largest absolute value written to the output buffer
+	 * @see #projectOntoArray(SmoothedFunction, Range, int)
+	 */
+	public static double projectInto(SmoothedFunction f, Range range, double[] out, int size) {
+		return projectInto(f, range, out, size, 0, size);
+	}
+	
+	/**
+	 * Projects a function onto the elements [from, to) of a caller-supplied
+	 * buffer, leaving the other elements untouched.
+	 * 
+	 * @param f The function to project onto an Array
+	 * @param range The range of the function to be projected
+	 * @param out The output buffer (length at least size)
+	 * @param size The number of elements of the full projection
+	 * @param from The first element to project
+	 * @param to The element after the last one to project
+	 * @return The largest absolute value written to the output buffer
+	 * @see #projectInto(SmoothedFunction, Range, double[], int)
+	 */
+	public static double projectInto(SmoothedFunction f, Range range, double[] out, int size, int from, int to) {
 		final double step = (range.end-1.0 - range.begin) / (size-1);
+		double maxAbs = 0;
 		
-		double x;
-		for (int i = 0; i < size-1; i++) {
-			x = i*step;
-			smoothed[i] = f.apply(x);
+		if (from == 0 && to == size)
+			f.applyOnGrid(step, out, 0, size-1);
+		else
+			f.applyOnGridWindow(step, out, from, Math.min(to, size-1));
+		if (to == size) {
+			double x = size-1;
+			out[size-1] = f.apply(x);
 		}
-		x = size-1;
-		smoothed[size-1] = f.apply(x);
 		
-		return smoothed;
+		for (int i = from; i < to; i++) {
+			maxAbs = Math.max(maxAbs, Math.abs(out[i]));
+		}
+		
+		return maxAbs;
 	}
 
 	/**
@@ -75,16 +135,26 @@ public class ArrayFunctions {
 	 * @param array The input array
 	 */
 	public static void normalize(double[] array) {
+		normalize(array, array.length);
+	}
+	
+	/**
+	 * Normalizes the first length values of the input array to lie between [-1,1].
+	 * 
+	 * @param array The input array
+	 * @param length The number of elements to normalize
+	 */
+	public static void normalize(double[] array, int length) {
 		double min, max;
 		min = max = array[0];
-		for (int i = 1; i < array.length; i++) {
+		for (int i = 1; i < length; i++) {
 			max = Math.max(max, array[i]);
 			min = Math.min(min, array[i]);
 		}
 		double scale = Math.max(Math.abs(max), Math.abs(min));
 		
 		if (scale != 0)
-			for (int i = 0; i < array.length; i++)
+			for (int i = 0; i < length; i++)
 				array[i] /= scale;
 	}
 }
@@ -0,0 +1,155 @@
+package cubrikproject.tud.likelines.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared worker pool for splitting CPU-bound computations across cores.
+ *
+ * The pool has one daemon thread per available processor and is created on
+ * first use. Tasks submitted from one of its own workers are run inline, so
+ * nested parallel computations cannot starve the pool.
+ */
+public class Parallel {
+
+	/** Number of worker threads */
+	private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	/** Marks the worker threads of the pool */
+	private static final ThreadLocal<Boolean> IS_WORKER = new ThreadLocal<Boolean>();
+
+	/** The shared pool (created on first use) */
+	private static ExecutorService _pool;
+
+	/**
+	 * @return The number of tasks that can run at the same time
+	 */
+	public static int parallelism() {
+		return PARALLELISM;
+	}
+
+	/**
+	 * @return True iff the current thread is a worker of the shared pool
+	 */
+	public static boolean isWorkerThread() {
+		return IS_WORKER.get() != null;
+	}
+
+	/**
+	 * Returns the shared pool, creating it on first use.
+	 *
+	 * @return The shared pool
+	 */
+	private static synchronized ExecutorService pool() {
+		if (_pool == null) {
+			final AtomicInteger counter = new AtomicInteger();
+			_pool = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							IS_WORKER.set(Boolean.TRUE);
+							r.run();
+						}
+					}, "likelines-parallel-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return _pool;
+	}
+
+	/**
+	 * Submits a task to the shared pool. Workers of the pool must not wait
+	 * for the returned future, since that could starve the pool.
+	 *
+	 * @param task The task to run
+	 * @return A future holding the task's result
+	 */
+	public static <T> Future<T> submit(Callable<T> task) {
+		return pool().submit(task);
+	}
+
+	/**
+	 * Runs all tasks and returns their results in the order of the tasks.
+	 *
+	 * The first task is run by the calling thread while the others run on
+	 * the shared pool. When called from a worker of the pool, or when there is
+	 * only one processor, all tasks are run by the calling thread.
+	 *
+	 * @param tasks The tasks to run
+	 * @return The results of the tasks
+	 * @throws RuntimeException When a task fails (its runtime exception is
+	 *             rethrown as is) or the calling thread is interrupted
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+		final List<T> results = new ArrayList<T>(tasks.size());
+
+		if (tasks.size() <= 1 || PARALLELISM <= 1 || isWorkerThread()) {
+			for (Callable<T> task : tasks)
+				results.add(call(task));
+			return results;
+		}
+
+		final ExecutorService pool = pool();
+		final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size() - 1);
+		try {
+			for (int i = 1; i < tasks.size(); i++)
+				futures.add(pool.submit(tasks.get(i)));
+
+			results.add(call(tasks.get(0)));
+			for (Future<T> future : futures)
+				results.add(future.get());
+			return results;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for parallel tasks", e);
+		}
+		catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		}
+		finally {
+			for (Future<T> future : futures)
+				future.cancel(false);
+		}
+	}
+
+	/**
+	 * Helper method to run a task in the calling thread.
+	 *
+	 * @param task The task to run
+	 * @return The task's result
+	 */
+	private static <T> T call(Callable<T> task) {
+		try {
+			return task.call();
+		}
+		catch (Exception e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Helper method to rethrow the failure of a task.
+	 *
+	 * @param cause The failure
+	 * @return A runtime exception to be thrown (errors are thrown directly)
+	 */
+	private static RuntimeException unwrap(Throwable cause) {
+		if (cause instanceof Error)
+			throw (Error) cause;
+		if (cause instanceof RuntimeException)
+			return (RuntimeException) cause;
+		return new RuntimeException(cause);
+	}
+}
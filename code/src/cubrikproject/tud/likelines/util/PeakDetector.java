@@ -0,0 +1,243 @@
+package cubrikproject.tud.likelines.util;
+
+/**
+ * Incremental peak detector. Samples are fed one at a time or in chunks, and
+ * a peak is reported as soon as it is confirmed, i.e., once the curve has
+ * dropped DELTA below the running maximum. Optionally, the top K peaks seen
+ * so far are kept in a bounded heap, so no samples need to be buffered.
+ * 
+ * Adapted from <a href="http://billauer.co.il/peakdet.html">http://billauer.co.il/peakdet.html</a>.
+ * 
+ * @see Peaks
+ */
+public class PeakDetector {
+	
+	/** Callback for confirmed peaks and valleys. */
+	public interface Listener {
+		/**
+		 * Called when a peak has been confirmed.
+		 * 
+		 * @param x x-coordinate of the peak
+		 * @param y y-coordinate of the peak
+		 */
+		void onPeak(double x, double y);
+		
+		/**
+		 * Called when a valley has been confirmed.
+		 * 
+		 * @param x x-coordinate of the valley
+		 * @param y y-coordinate of the valley
+		 */
+		void onValley(double x, double y);
+	}
+	
+	/** Peak detection delta */
+	private final double _delta;
+	/** Optional (null) top K peaks */
+	private final TopPoints _top;
+	/** Optional (null) listener */
+	private final Listener _listener;
+	
+	private double _mn;
+	private double _mx;
+	private double _mnpos;
+	private double _mxpos;
+	private boolean _lookformax;
+	
+	/** Number of samples seen */
+	private long _samples;
+	/** Number of peaks confirmed */
+	private long _numPeaks;
+	/** Last confirmed peak */
+	private double _lastPeakX = Double.NaN, _lastPeakY = Double.NaN;
+	
+	/**
+	 * Constructs a PeakDetector that only tracks the last confirmed peak.
+	 * 
+	 * @param delta
+	 *            A point is considered a maximum peak if it has the maximal
+	 *            value, and was preceded (to the left) by a value lower by
+	 *            DELTA.
+	 */
+	public PeakDetector(double delta) {
+		this(delta, 0, null);
+	}
+	
+	/**
+	 * Constructs a PeakDetector.
+	 * 
+	 * @param delta
+	 *            A point is considered a maximum peak if it has the maximal
+	 *            value, and was preceded (to the left) by a value lower by
+	 *            DELTA.
+	 * @param topK
+	 *            The number of highest peaks to keep (0 to keep none)
+	 * @param listener
+	 *            Optional (null). Notified of each confirmed peak and valley
+	 */
+	public PeakDetector(double delta, int topK, Listener listener) {
+		if (!(delta > 0))
+			throw new IllegalArgumentException("Input argument delta must be positive");
+		
+		_delta = delta;
+		_top = topK > 0 ? new TopPoints(topK) : null;
+		_listener = listener;
+		reset();
+	}
+	
+	/**
+	 * Resets the detector to its initial state.
+	 */
+	public void reset() {
+		_mn = Double.POSITIVE_INFINITY;
+		_mx = Double.NEGATIVE_INFINITY;
+		_mnpos = Double.NaN;
+		_mxpos = Double.NaN;
+		_lookformax = true;
+		_samples = 0;
+		_numPeaks = 0;
+		_lastPeakX = _lastPeakY = Double.NaN;
+		if (_top != null)
+			_top.clear();
+	}
+	
+	/**
+	 * Feeds the next sample, using its 1-based position as x-coordinate.
+	 * 
+	 * @param y y-coordinate of the sample
+	 * @return True iff a peak was confirmed by this sample
+	 */
+	public boolean add(double y) {
+		return add(_samples + 1, y);
+	}
+	
+	/**
+	 * Feeds the next sample.
+	 * 
+	 * @param x x-coordinate of the sample
+	 * @param y y-coordinate of the sample
+	 * @return True iff a peak was confirmed by this sample
+	 */
+	public boolean add(double x, double y) {
+		_samples++;
+		
+		if (y > _mx) {
+			_mx = y;
+			_mxpos = x;
+		}
+		if (y < _mn) {
+			_mn = y;
+			_mnpos = x;
+		}
+		
+		if (_lookformax) {
+			if (y < _mx-_delta) {
+				confirmPeak(_mxpos, _mx);
+				_mn = y;
+				_mnpos = x;
+				_lookformax = false;
+				return true;
+			}
+		}
+		else {
+			if (y > _mn+_delta) {
+				if (_listener != null)
+					_listener.onValley(_mnpos, _mn);
+				_mx = y;
+				_mxpos = x;
+				_lookformax = true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Feeds a chunk of samples, using their 1-based positions in the stream
+	 * as x-coordinates.
+	 * 
+	 * @param ys Array containing the samples
+	 * @param offset Index of the first sample in the array
+	 * @param length Number of samples
+	 * @return The number of peaks confirmed by this chunk
+	 */
+	public int addAll(double[] ys, int offset, int length) {
+		int confirmed = 0;
+		for (int i = offset; i < offset + length; i++)
+			if (add(ys[i]))
+				confirmed++;
+		return confirmed;
+	}
+	
+	/**
+	 * Feeds a chunk of samples.
+	 * 
+	 * @param xs Array containing the x-coordinates
+	 * @param ys Array containing the y-coordinates
+	 * @param offset Index of the first sample in the arrays
+	 * @param length Number of samples
+	 * @return The number of peaks confirmed by this chunk
+	 */
+	public int addAll(double[] xs, double[] ys, int offset, int length) {
+		int confirmed = 0;
+		for (int i = offset; i < offset + length; i++)
+			if (add(xs[i], ys[i]))
+				confirmed++;
+		return confirmed;
+	}
+	
+	private void confirmPeak(double x, double y) {
+		_numPeaks++;
+		_lastPeakX = x;
+		_lastPeakY = y;
+		if (_top != null)
+			_top.offer(x, y);
+		if (_listener != null)
+			_listener.onPeak(x, y);
+	}
+	
+	/** @return The number of samples fed so far */
+	public long samples() {
+		return _samples;
+	}
+	
+	/** @return The number of peaks confirmed so far */
+	public long numPeaks() {
+		return _numPeaks;
+	}
+	
+	/** @return x-coordinate of the last confirmed peak (NaN if none) */
+	public double lastPeakX() {
+		return _lastPeakX;
+	}
+	
+	/** @return y-coordinate of the last confirmed peak (NaN if none) */
+	public double lastPeakY() {
+		return _lastPeakY;
+	}
+	
+	/**
+	 * @return x-coordinate of the running maximum that has not been confirmed
+	 *         as a peak yet (NaN if currently looking for a valley)
+	 */
+	public double pendingPeakX() {
+		return _lookformax ? _mxpos : Double.NaN;
+	}
+	
+	/**
+	 * @return y-coordinate of the running maximum that has not been confirmed
+	 *         as a peak yet (NaN if currently looking for a valley)
+	 */
+	public double pendingPeakY() {
+		return _lookformax ? _mx : Double.NaN;
+	}
+	
+	/**
+	 * Returns the highest confirmed peaks so far.
+	 * 
+	 * @return At most K peaks, ordered by descending y-coordinate (ties in
+	 *         order of detection); empty if no top K is kept
+	 */
+	public PointArray topPeaks() {
+		return _top == null ? new PointArray(1) : _top.toSortedArray();
+	}
+}
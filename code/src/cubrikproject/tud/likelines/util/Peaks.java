@@ -36,57 +36,101 @@ public class Peaks {
 	 * @return A set of peaks
 	 */
 	public static Peaks extract(double[] points, double[] x, double delta) {
-		List<Point> maxtab = new ArrayList<Point>();
-		List<Point> mintab = new ArrayList<Point>();
-		Peaks res = new Peaks(mintab, maxtab);
-		
-		if (x == null) {
-			x = new double[points.length];
-			for (int i = 0; i < x.length; i++) {
-				x[i] = i+1;
+		final List<Point> maxtab = new ArrayList<Point>();
+		final List<Point> mintab = new ArrayList<Point>();
+		final PeakDetector detector = new PeakDetector(delta, 0, new PeakDetector.Listener() {
+			@Override
+			public void onPeak(double x, double y) {
+				maxtab.add(new Point(x, y));
 			}
-		}
-		
-		assert points.length == x.length : "Input arguments points and x must have the same length";
-		assert delta > 0 : "Input argument delta must be positive";
-		
-		double mn = Double.POSITIVE_INFINITY;
-		double mx = Double.NEGATIVE_INFINITY;
-		double mnpos = Double.NaN;
-		double mxpos = Double.NaN;
-		
-		boolean lookformax = true;
-		
-		for (int i = 0; i < points.length; i++) {
-			double cur = points[i];
-			if (cur > mx) {
-				mx = cur;
-				mxpos = x[i];
+			
+			@Override
+			public void onValley(double x, double y) {
+				mintab.add(new Point(x, y));
 			}
-			if (cur < mn) {
-				mn = cur;
-				mnpos = x[i];
+		});
+		feed(detector, points, x);
+		return new Peaks(mintab, maxtab);
+	}
+	
+	
+	/**
+	 * Extract peaks from an array of points into primitive arrays.
+	 * 
+	 * @param points
+	 *            An array of points (y-coordinates) to extract peaks from.
+	 * @param x
+	 *            Optional (null). Corresponding list of x-coordinates. If
+	 *            omitted, the implicit x-coordinate of points[i] is i+1.
+	 * @param delta
+	 *            A point is considered a maximum peak if it has the maximal
+	 *            value, and was preceded (to the left) by a value lower by
+	 *            DELTA.
+	 * @param valleys
+	 *            Optional (null). Receives the valleys; skipped if null.
+	 * @return The peaks, in order of detection
+	 * @see #extract(double[], double[], double)
+	 */
+	public static PointArray extractPeaks(double[] points, double[] x, double delta, final PointArray valleys) {
+		final PointArray peaks = new PointArray();
+		final PeakDetector detector = new PeakDetector(delta, 0, new PeakDetector.Listener() {
+			@Override
+			public void onPeak(double x, double y) {
+				peaks.add(x, y);
 			}
 			
-			if (lookformax) {
-				if (cur < mx-delta) {
-					maxtab.add(new Point(mxpos, mx));
-					mn = cur;
-					mnpos = x[i];
-					lookformax = false;
-				}
-			}
-			else {
-				if (cur > mn+delta) {
-					mintab.add(new Point(mnpos, mn));
-					mx = cur;
-					mxpos = x[i];
-					lookformax = true;
-				}
+			@Override
+			public void onValley(double x, double y) {
+				if (valleys != null)
+					valleys.add(x, y);
 			}
-		}
-				
-		return res;
+		});
+		feed(detector, points, x);
+		return peaks;
+	}
+	
+	/**
+	 * Extract the N highest peaks from an array of points. A bounded min-heap
+	 * is maintained during detection, so neither a full list of peaks nor a
+	 * sort is needed.
+	 * 
+	 * @param points
+	 *            An array of points (y-coordinates) to extract peaks from.
+	 * @param x
+	 *            Optional (null). Corresponding list of x-coordinates. If
+	 *            omitted, the implicit x-coordinate of points[i] is i+1.
+	 * @param delta
+	 *            A point is considered a maximum peak if it has the maximal
+	 *            value, and was preceded (to the left) by a value lower by
+	 *            DELTA.
+	 * @param n
+	 *            The (maximum) number of peaks to return
+	 * @return At most N peaks, ordered by descending y-coordinate (ties in
+	 *         order of detection)
+	 */
+	public static PointArray extractTopPeaks(double[] points, double[] x, double delta, int n) {
+		if (n <= 0)
+			return new PointArray(1);
+		
+		final PeakDetector detector = new PeakDetector(delta, n, null);
+		feed(detector, points, x);
+		return detector.topPeaks();
+	}
+	
+	/**
+	 * Helper method to feed an array of points to a detector.
+	 * 
+	 * @param detector The peak detector
+	 * @param points Array of y-coordinates
+	 * @param x Optional (null) array of x-coordinates
+	 */
+	private static void feed(PeakDetector detector, double[] points, double[] x) {
+		assert x == null || points.length == x.length : "Input arguments points and x must have the same length";
+		
+		if (x == null)
+			detector.addAll(points, 0, points.length);
+		else
+			detector.addAll(x, points, 0, points.length);
 	}
 	
 	
@@ -0,0 +1,89 @@
+package cubrikproject.tud.likelines.util;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of points (x,y) stored as parallel primitive arrays.
+ * 
+ */
+public class PointArray {
+	/** x-coordinates */
+	private double[] _x;
+	/** y-coordinates */
+	private double[] _y;
+	/** Number of points */
+	private int _size;
+	
+	/**
+	 * Constructs an empty PointArray.
+	 */
+	public PointArray() {
+		this(16);
+	}
+	
+	/**
+	 * Constructs an empty PointArray.
+	 * 
+	 * @param capacity Initial capacity
+	 */
+	public PointArray(int capacity) {
+		_x = new double[Math.max(capacity, 1)];
+		_y = new double[_x.length];
+	}
+	
+	/**
+	 * Appends a point.
+	 * 
+	 * @param x x-coordinate
+	 * @param y y-coordinate
+	 */
+	public void add(double x, double y) {
+		if (_size == _x.length) {
+			_x = Arrays.copyOf(_x, 2 * _size);
+			_y = Arrays.copyOf(_y, 2 * _size);
+		}
+		_x[_size] = x;
+		_y[_size] = y;
+		_size++;
+	}
+	
+	/** Removes all points (keeps the allocated capacity). */
+	public void clear() {
+		_size = 0;
+	}
+	
+	/** @return The number of points */
+	public int size() {
+		return _size;
+	}
+	
+	/**
+	 * @param i Index of the point
+	 * @return x-coordinate of the i-th point
+	 */
+	public double x(int i) {
+		if (i >= _size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + _size);
+		return _x[i];
+	}
+	
+	/**
+	 * @param i Index of the point
+	 * @return y-coordinate of the i-th point
+	 */
+	public double y(int i) {
+		if (i >= _size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + _size);
+		return _y[i];
+	}
+	
+	/** @return A copy of the x-coordinates */
+	public double[] xs() {
+		return Arrays.copyOf(_x, _size);
+	}
+	
+	/** @return A copy of the y-coordinates */
+	public double[] ys() {
+		return Arrays.copyOf(_y, _size);
+	}
+}
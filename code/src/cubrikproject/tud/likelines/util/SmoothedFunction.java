@@ -1,5 +1,7 @@
 package cubrikproject.tud.likelines.util;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -11,8 +13,26 @@ public class SmoothedFunction {
 	/** Default smoothing kernel bandwidth */
 	private static final double DEFAULT_SMOOTHING_BANDWIDTH = 1.0;
 	
+	/**
+	 * Gaussian terms further than this many bandwidths away from a point
+	 * underflow to exactly zero (exp(-x*x/2) == 0 for x &gt; 38.6).
+	 */
+	private static final double CUTOFF = 39;
+	
+	/** Normalization constant of the standard Gaussian */
+	private static final double SQRT_2PI = Math.sqrt(2 * Math.PI);
+	
 	/** points */
-	private final List<? extends Double> data;
+	private final double[] data;
+	
+	/** weight of each point, or null if all points weigh 1 */
+	private final double[] weights;
+	
+	/** sum of the weights */
+	private final double total;
+	
+	/** points sorted by value (created on first use) */
+	private volatile SortedPoints _sorted;
 	
 	
 	/**
@@ -21,7 +41,48 @@ public class SmoothedFunction {
 	 * @param data List of points
 	 */
 	public SmoothedFunction(List<? extends Double> data) {
+		this.data = new double[data.size()];
+		for (int i = 0; i < this.data.length; i++) {
+			this.data[i] = data.get(i);
+		}
+		this.weights = null;
+		this.total = this.data.length;
+	}
+	
+	/**
+	 * Constructs a smoothed function object.
+	 * 
+	 * @param data Array of points (not copied)
+	 */
+	public SmoothedFunction(double[] data) {
+		this.data = data;
+		this.weights = null;
+		this.total = data.length;
+	}
+	
+	/**
+	 * Constructs a smoothed function object over weighted points, where a
+	 * point of weight w counts as w coinciding points.
+	 * 
+	 * @param data Array of points (not copied)
+	 * @param weights Array of non-negative weights, one per point (not copied)
+	 */
+	public SmoothedFunction(double[] data, double[] weights) {
+		assert data.length == weights.length : "Expected one weight per point";
 		this.data = data;
+		this.weights = weights;
+		
+		double sum = 0;
+		for (double w : weights)
+			sum += w;
+		this.total = sum;
+	}
+	
+	/**
+	 * @return The number of (distinct) points
+	 */
+	public int size() {
+		return data.length;
 	}
 	
 	/** Function application */
@@ -31,19 +92,233 @@ public class SmoothedFunction {
 	
 	/** Function application */
 	public double apply(double x, double h) {
-		final int n = data.size();
+		final int n = data.length;
 		double y = 0;
 		
-		for (double point : data)
-			y += gaussian( (x-point) / h );
+		for (int i = 0; i < n; i++)
+			y += weight(i) * gaussian( (x-data[i]) / h );
 		
-		if (n > 0)
-			y /= n*h;
+		if (total > 0)
+			y /= total*h;
 		return y;
 	}
 	
+	/**
+	 * Evaluates this function on the grid x = i*step, 0 &lt;= i &lt; size.
+	 * 
+	 * Each point only contributes to the grid cells within its cut-off
+	 * window, where the Gaussian has not underflowed to zero. Since points are
+	 * still accumulated in their original order, the outcome is identical to
+	 * applying the function to each grid cell individually.
+	 * 
+	 * @param step The distance between two consecutive grid cells
+	 * @param out The output buffer (length at least size)
+	 * @param size The number of grid cells to evaluate
+	 */
+	public void applyOnGrid(double step, double[] out, int size) {
+		applyOnGrid(step, out, 0, size);
+	}
+	
+	/**
+	 * Evaluates this function on the grid cells x = i*step, from &lt;= i &lt; to.
+	 * 
+	 * @param step The distance between two consecutive grid cells
+	 * @param out The output buffer, indexed by grid cell (length at least to)
+	 * @param from The first grid cell to evaluate
+	 * @param to The grid cell after the last one to evaluate
+	 * @see #applyOnGrid(double, double[], int)
+	 */
+	public void applyOnGrid(double step, double[] out, int from, int to) {
+		final double h = DEFAULT_SMOOTHING_BANDWIDTH;
+		final int n = data.length;
+		final boolean windowed = step > 0 && !Double.isInfinite(step);
+		
+		Arrays.fill(out, from, to, 0);
+		
+		for (int k = 0; k < n; k++) {
+			final double point = data[k];
+			int first = from;
+			int last = to - 1;
+			
+			if (windowed && !Double.isNaN(point) && !Double.isInfinite(point)) {
+				first = (int) Math.max(Math.floor((point - CUTOFF*h) / step) - 1, from);
+				last = (int) Math.min(Math.ceil((point + CUTOFF*h) / step) + 1, to - 1);
+			}
+			
+			final double w = weight(k);
+			for (int i = first; i <= last; i++)
+				out[i] += w * gaussian( (i*step - point) / h );
+		}
+		
+		if (total > 0)
+			for (int i = from; i < to; i++)
+				out[i] /= total*h;
+	}
+	
+	/**
+	 * Evaluates this function on the grid cells x = i*step, from &lt;= i &lt; to,
+	 * only visiting the points within cut-off distance of these cells.
+	 * 
+	 * Unlike {@link #applyOnGrid(double, double[], int, int)}, the cost does
+	 * not grow with the total number of points, which makes this method
+	 * suitable for evaluating many small windows. The outcome is identical.
+	 * 
+	 * @param step The distance between two consecutive grid cells
+	 * @param out The output buffer, indexed by grid cell (length at least to)
+	 * @param from The first grid cell to evaluate
+	 * @param to The grid cell after the last one to evaluate
+	 */
+	public void applyOnGridWindow(double step, double[] out, int from, int to) {
+		final SortedPoints sorted = sortedPoints();
+		if (sorted == null || !(step > 0) || Double.isInfinite(step) || from >= to) {
+			applyOnGrid(step, out, from, to);
+			return;
+		}
+		
+		final double h = DEFAULT_SMOOTHING_BANDWIDTH;
+		final int n = data.length;
+		final double margin = CUTOFF*h + step;
+		final int begin = sorted.lowerBound(from*step - margin);
+		final int end = sorted.lowerBound((to-1)*step + margin);
+		
+		// visit the nearby points in their original order
+		final int[] nearby = Arrays.copyOfRange(sorted.order, begin, end);
+		Arrays.sort(nearby);
+		
+		Arrays.fill(out, from, to, 0);
+		
+		for (int k : nearby) {
+			final double point = data[k];
+			final int first = (int) Math.max(Math.floor((point - CUTOFF*h) / step) - 1, from);
+			final int last = (int) Math.min(Math.ceil((point + CUTOFF*h) / step) + 1, to - 1);
+			
+			final double w = weight(k);
+			for (int i = first; i <= last; i++)
+				out[i] += w * gaussian( (i*step - point) / h );
+		}
+		
+		if (total > 0)
+			for (int i = from; i < to; i++)
+				out[i] /= total*h;
+	}
+	
+	/**
+	 * Computes an upper bound of this function for each block of blockSize
+	 * consecutive grid cells x = i*step, 0 &lt;= i &lt; size.
+	 * 
+	 * Points are counted per block, and each block is bounded using the
+	 * smallest possible distance to the points of every nearby block.
+	 * 
+	 * @param step The distance between two consecutive grid cells
+	 * @param size The number of grid cells
+	 * @param blockSize The number of grid cells per block
+	 * @param bounds Receives ceil(size / blockSize) bounds
+	 */
+	public void upperBoundOnBlocks(double step, int size, int blockSize, double[] bounds) {
+		final double h = DEFAULT_SMOOTHING_BANDWIDTH;
+		final int n = data.length;
+		final int numBlocks = (size + blockSize - 1) / blockSize;
+		
+		if (!(total > 0)) {
+			Arrays.fill(bounds, 0, numBlocks, 0);
+			return;
+		}
+		if (!(step > 0) || Double.isInfinite(step)) {
+			// all cells coincide; every point may be at distance zero
+			Arrays.fill(bounds, 0, numBlocks, gaussian(0) / h);
+			return;
+		}
+		
+		final double blockWidth = blockSize * step;
+		final double[] counts = new double[numBlocks];
+		for (int k = 0; k < n; k++) {
+			// points outside the grid are moved to the nearest block, which only loosens the bound
+			final double block = Math.floor(data[k] / blockWidth);
+			counts[(int) Math.max(0, Math.min(numBlocks - 1, block))] += weight(k);
+		}
+		
+		final int reach = (int) Math.ceil(CUTOFF*h / blockWidth) + 1;
+		for (int j = 0; j < numBlocks; j++) {
+			double bound = 0;
+			for (int k = Math.max(j - reach, 0); k <= Math.min(j + reach, numBlocks - 1); k++) {
+				if (counts[k] == 0)
+					continue;
+				final double distance = Math.max(Math.abs(j - k) - 1, 0) * blockWidth;
+				bound += counts[k] * gaussian(distance / h);
+			}
+			bounds[j] = bound / (total*h);
+		}
+	}
+	
+	/**
+	 * @param k Index of a point
+	 * @return The weight of the point
+	 */
+	private double weight(int k) {
+		return weights == null ? 1 : weights[k];
+	}
+	
+	/**
+	 * Returns the points sorted by value, creating them on first use.
+	 * 
+	 * @return The sorted points, or null if some point is NaN
+	 */
+	private SortedPoints sortedPoints() {
+		SortedPoints sorted = _sorted;
+		if (sorted == null) {
+			for (double point : data)
+				if (Double.isNaN(point))
+					return null;
+			_sorted = sorted = new SortedPoints(data);
+		}
+		return sorted;
+	}
+	
+	/** Indices of a point array, ordered by value. */
+	private static class SortedPoints {
+		/** Point values in ascending order */
+		final double[] values;
+		/** Index of each sorted value in the original array */
+		final int[] order;
+		
+		SortedPoints(final double[] data) {
+			final Integer[] indices = new Integer[data.length];
+			for (int i = 0; i < indices.length; i++)
+				indices[i] = i;
+			Arrays.sort(indices, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Double.compare(data[a], data[b]);
+				}
+			});
+			
+			values = new double[data.length];
+			order = new int[data.length];
+			for (int i = 0; i < indices.length; i++) {
+				order[i] = indices[i];
+				values[i] = data[order[i]];
+			}
+		}
+		
+		/**
+		 * @param value Value to search for
+		 * @return The index of the first sorted value not smaller than value
+		 */
+		int lowerBound(double value) {
+			int lo = 0, hi = values.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (values[mid] < value)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+	
 	/** Standard Gaussian. */
 	private static double gaussian(double x) {
-		return Math.exp(x*x/-2) / Math.sqrt(2 * Math.PI);
+		return Math.exp(x*x/-2) / SQRT_2PI;
 	}
 }
\ No newline at end of file
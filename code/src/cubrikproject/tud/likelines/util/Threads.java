@@ -0,0 +1,102 @@
+package cubrikproject.tud.likelines.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads of I/O-bound work (HTTP requests, downloads, waiting
+ * for external processes).
+ *
+ * By default these are daemon platform threads. When virtual threads are
+ * enabled and the JVM supports them (Java 21 or later), virtual threads are
+ * created instead, which makes a high number of concurrent requests cheap.
+ * CPU-bound work is not affected and stays on bounded platform pools such as
+ * {@link Parallel}.
+ *
+ * Virtual threads are enabled by the system property
+ * {@code likelines.virtualThreads=true} or by {@link #enableVirtualThreads()},
+ * before the thread factories are created. Since the bundle targets Java 6,
+ * they are looked up by reflection.
+ */
+public class Threads {
+
+	/** Whether virtual threads are requested */
+	private static volatile boolean _virtualRequested = Boolean.getBoolean("likelines.virtualThreads");
+
+	/** Thread.ofVirtual(), or null if not supported */
+	private static final Method OF_VIRTUAL;
+	/** Thread.Builder.OfVirtual.name(String, long) */
+	private static final Method NAME;
+	/** Thread.Builder.factory() */
+	private static final Method FACTORY;
+
+	static {
+		Method ofVirtual = null, name = null, factory = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class);
+			factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+	}
+
+	/**
+	 * @return True iff the JVM supports virtual threads
+	 */
+	public static boolean virtualThreadsSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Requests virtual threads for I/O-bound work created from now on.
+	 *
+	 * @return True iff virtual threads are supported and will be used
+	 */
+	public static boolean enableVirtualThreads() {
+		_virtualRequested = true;
+		if (!virtualThreadsSupported())
+			System.err.println(">>> Threads: virtual threads are not supported by this JVM, using platform threads");
+		return usesVirtualThreads();
+	}
+
+	/**
+	 * @return True iff I/O-bound work runs on virtual threads
+	 */
+	public static boolean usesVirtualThreads() {
+		return _virtualRequested && virtualThreadsSupported();
+	}
+
+	/**
+	 * Creates a factory for threads doing I/O-bound work: virtual threads if
+	 * enabled, otherwise daemon platform threads. The threads are named by
+	 * the prefix followed by a counter.
+	 *
+	 * @param prefix The prefix of the threads' names
+	 * @return The thread factory
+	 */
+	public static ThreadFactory ioThreadFactory(final String prefix) {
+		if (usesVirtualThreads()) {
+			try {
+				final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (Exception e) {
+				System.err.println(">>> Threads: cannot create virtual threads, using platform threads: " + e);
+			}
+		}
+
+		final AtomicInteger counter = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, prefix + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
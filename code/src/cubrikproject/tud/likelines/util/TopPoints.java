@@ -0,0 +1,156 @@
+package cubrikproject.tud.likelines.util;
+
+/**
+ * Keeps the K points with the largest y-coordinates offered so far, using a
+ * bounded min-heap. Among points with equal y-coordinates, the point offered
+ * first ranks higher (as with a stable sort).
+ * 
+ */
+public class TopPoints {
+	/** Maximum number of points kept */
+	private final int _capacity;
+	/** Heap of x-coordinates */
+	private final double[] _x;
+	/** Heap of y-coordinates */
+	private final double[] _y;
+	/** Heap of offer sequence numbers (for tie-breaking) */
+	private final long[] _seq;
+	/** Number of points in the heap */
+	private int _size;
+	/** Number of points offered so far */
+	private long _offered;
+	
+	/**
+	 * Constructs an empty TopPoints object.
+	 * 
+	 * @param capacity The number of points (K) to keep
+	 */
+	public TopPoints(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity must be non-negative");
+		
+		_capacity = capacity;
+		_x = new double[capacity];
+		_y = new double[capacity];
+		_seq = new long[capacity];
+	}
+	
+	/**
+	 * Offers a point.
+	 * 
+	 * @param x x-coordinate
+	 * @param y y-coordinate
+	 * @return True iff the point is (for now) among the top K
+	 */
+	public boolean offer(double x, double y) {
+		final long seq = _offered++;
+		
+		if (_size < _capacity) {
+			int i = _size++;
+			set(i, x, y, seq);
+			siftUp(i);
+			return true;
+		}
+		// A later point only beats the weakest point with a strictly larger y
+		if (_capacity == 0 || !(y > _y[0]))
+			return false;
+		
+		set(0, x, y, seq);
+		siftDown(0);
+		return true;
+	}
+	
+	/** Removes all points. */
+	public void clear() {
+		_size = 0;
+		_offered = 0;
+	}
+	
+	/** @return The number of points kept */
+	public int size() {
+		return _size;
+	}
+	
+	/** @return The maximum number of points kept */
+	public int capacity() {
+		return _capacity;
+	}
+	
+	/**
+	 * @return The y-coordinate a new point needs to exceed to enter a full
+	 *         top K, or negative infinity if the top K is not full yet
+	 */
+	public double threshold() {
+		return _size < _capacity ? Double.NEGATIVE_INFINITY : (_capacity == 0 ? Double.POSITIVE_INFINITY : _y[0]);
+	}
+	
+	/**
+	 * Returns the kept points ordered by descending y-coordinate.
+	 * 
+	 * @return The top K points
+	 */
+	public PointArray toSortedArray() {
+		final int n = _size;
+		final int[] order = new int[n];
+		
+		// insertion sort on heap indices (K is small)
+		for (int i = 0; i < n; i++) {
+			int j = i;
+			while (j > 0 && ranksBelow(order[j-1], i)) {
+				order[j] = order[j-1];
+				j--;
+			}
+			order[j] = i;
+		}
+		
+		final PointArray res = new PointArray(n);
+		for (int i = 0; i < n; i++)
+			res.add(_x[order[i]], _y[order[i]]);
+		return res;
+	}
+	
+	/**
+	 * @return True iff the point at heap index a ranks below the one at index b
+	 */
+	private boolean ranksBelow(int a, int b) {
+		return _y[a] < _y[b] || (_y[a] == _y[b] && _seq[a] > _seq[b]);
+	}
+	
+	private void set(int i, double x, double y, long seq) {
+		_x[i] = x;
+		_y[i] = y;
+		_seq[i] = seq;
+	}
+	
+	private void swap(int i, int j) {
+		final double x = _x[i], y = _y[i];
+		final long seq = _seq[i];
+		set(i, _x[j], _y[j], _seq[j]);
+		set(j, x, y, seq);
+	}
+	
+	private void siftUp(int i) {
+		while (i > 0) {
+			final int parent = (i - 1) / 2;
+			if (!ranksBelow(i, parent))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+	
+	private void siftDown(int i) {
+		while (true) {
+			final int left = 2 * i + 1;
+			if (left >= _size)
+				break;
+			
+			final int right = left + 1;
+			final int child = (right < _size && ranksBelow(right, left)) ? right : left;
+			if (!ranksBelow(child, i))
+				break;
+			swap(i, child);
+			i = child;
+		}
+	}
+}
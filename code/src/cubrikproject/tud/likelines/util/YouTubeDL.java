@@ -16,6 +16,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -28,6 +29,9 @@ public class YouTubeDL {
 	/** Regular expression that matches YouTube IDs */
 	public final static Pattern RE_YOUTUBE_ID = Pattern.compile("[a-zA-Z0-9_-]{11}");
 	
+	/** Number of bytes of the completed downloads of this JVM */
+	private final static AtomicLong _bytesDownloaded = new AtomicLong();
+	
 	/** Usage documentation when used as a CLI program */ 
 	private static void printUsage() {
 		System.err.println("java " + YouTubeDL.class.getCanonicalName() + " YOUTUBE_ID [TARGET_PATH]");
@@ -79,6 +83,13 @@ public class YouTubeDL {
 		return RE_YOUTUBE_ID.matcher(youtubeVideoId).matches();
 	}
 	
+	/**
+	 * @return The number of bytes of the streams downloaded by this JVM
+	 */
+	public static long bytesDownloaded() {
+		return _bytesDownloaded.get();
+	}
+	
 	/**
 	 * Get the VideoInfo for a YouTube video. 
 	 * 
@@ -227,6 +238,7 @@ public class YouTubeDL {
 				}
 				
 				System.err.println("File size: " + fos.getChannel().size());
+				_bytesDownloaded.addAndGet(fos.getChannel().size());
 			}
 			finally {
 				fos.close();
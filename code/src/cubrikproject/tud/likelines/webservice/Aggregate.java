@@ -1,17 +1,25 @@
 package cubrikproject.tud.likelines.webservice;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import cubrikproject.tud.likelines.util.ArrayFunctions;
+import cubrikproject.tud.likelines.util.Parallel;
 import cubrikproject.tud.likelines.util.Range;
 import cubrikproject.tud.likelines.util.SmoothedFunction;
 import cubrikproject.tud.likelines.webservice.MCAData.TYPE;
@@ -23,38 +31,193 @@ import cubrikproject.tud.likelines.webservice.MCAData.TYPE;
  */
 public class Aggregate {
 	
-	/** Original response from the server */
-	private final JsonObject _aggregate;
-	
-	/** Read-only list of liked points */
+	/** Read-only list of liked points (empty if sketched) */
 	public final List<? extends Double> likedPoints;
 	
-	/** Read-only list of playback sessions */
+	/** Read-only list of playback sessions (empty if sketched) */
 	public final List<? extends PlaybackSession> playbacks;
 	
+	/** Number of playback sessions */
+	public final int numPlaybacks;
+	
+	/** Whether the sessions and likes are summarized by a sketch */
+	public final boolean sketched;
+	
 	/** Read-only map of MCA data */
 	public final Map<String, ? extends MCAData> mcaData;
 	
-	/** Estimate of the video's length */
+	/** Estimate of the video's length (at most MAX_DURATION_ESTIMATE) */
 	public final int durationEstimate;
 	
+	/**
+	 * Upper limit in seconds of the duration estimate, so garbage points
+	 * cannot blow up the per-second histograms
+	 */
+	static final int MAX_DURATION_ESTIMATE = 24 * 60 * 60;
+	
 	/** Default heat-map size */
 	public final int DEFAULT_HEATMAP_SIZE = 425;
 	
+	/**
+	 * Minimum estimated work (heat-map bins times liked and MCA points) for
+	 * computing a heat-map in parallel
+	 */
+	private static final long PARALLEL_THRESHOLD = 1L << 22;
+	
+	/** Minimum number of heat-map bins per parallel task */
+	private static final int MIN_BINS_PER_TASK = 512;
+	
+	/** Smoothed function over the liked points */
+	private final SmoothedFunction _likesFunction;
+	
+	/** Range of video-seconds covered by the heat-map */
+	private final Range _range;
+	
+	/** Sketch of the sessions and likes, or null in exact mode */
+	private final AggregateSketch _sketch;
+	
+	/** Heat-maps computed ahead of time, by number of bins */
+	private final Map<Integer, double[]> _precomputedHeatmaps = new ConcurrentHashMap<Integer, double[]>();
+	
 	/**
 	 * Constructs a representation of the aggregate JSON object returned by the
-	 * LikeLines server.
+	 * LikeLines server. The JSON object is not kept, so the undecoded MCA
+	 * data is all that stays referenced.
 	 * 
 	 * @param aggregate
 	 *            JSON object returned by the LikeLines server
 	 */
 	public Aggregate(JsonObject aggregate) {
-		_aggregate = aggregate;
-
-		likedPoints = readLikedPoints(_aggregate);
-		playbacks = readPlaybacks(_aggregate);
-		mcaData = readMCAData(_aggregate);
+		likedPoints = readLikedPoints(aggregate);
+		playbacks = readPlaybacks(aggregate);
+		mcaData = readMCAData(aggregate.get("mca").getAsJsonObject());
 		durationEstimate = estimateDuration(likedPoints, playbacks, mcaData);
+		numPlaybacks = playbacks.size();
+		sketched = false;
+		
+		_sketch = null;
+		_likesFunction = new SmoothedFunction(likedPoints);
+		_range = new Range(0, durationEstimate);
+	}
+	
+	/**
+	 * Constructs an aggregate from decoded parts.
+	 * 
+	 * @param likedPoints List of liked points (empty if sketched)
+	 * @param playbacks List of playback sessions (empty if sketched)
+	 * @param mcaData Map of MCA data
+	 * @param sketch Sketch of the sessions and likes, or null in exact mode
+	 */
+	Aggregate(List<? extends Double> likedPoints, List<? extends PlaybackSession> playbacks,
+			Map<String, ? extends MCAData> mcaData, AggregateSketch sketch) {
+		this.likedPoints = likedPoints;
+		this.playbacks = playbacks;
+		this.mcaData = mcaData;
+		sketched = sketch != null;
+		
+		if (sketch == null) {
+			durationEstimate = estimateDuration(likedPoints, playbacks, mcaData);
+			numPlaybacks = playbacks.size();
+			_likesFunction = new SmoothedFunction(likedPoints);
+		}
+		else {
+			durationEstimate = estimateDuration(sketch.durationLowerBound(), mcaData);
+			numPlaybacks = sketch.numPlaybacks();
+			_likesFunction = sketch.likesFunction();
+		}
+		
+		_sketch = sketch;
+		_range = new Range(0, durationEstimate);
+	}
+	
+	/**
+	 * Decodes the aggregate JSON object returned by the LikeLines server from
+	 * a stream.
+	 * 
+	 * In sketched mode, the playback sessions and liked points are streamed
+	 * into fixed-size summaries instead of being kept in memory, making the
+	 * memory use independent of the number of sessions. The playback
+	 * histogram and time watched are exact, but liked points are binned; see
+	 * {@link AggregateSketch} for the error bounds.
+	 * 
+	 * @param reader Reader positioned at the aggregate JSON object
+	 * @param sketched Whether to summarize the sessions and likes by a sketch
+	 * @return The decoded aggregate
+	 * @throws IOException When the stream cannot be read or is malformed
+	 */
+	public static Aggregate fromJSON(JsonReader reader, boolean sketched) throws IOException {
+		if (!sketched)
+			return new Aggregate(new JsonParser().parse(reader).getAsJsonObject());
+		
+		final AggregateSketch sketch = new AggregateSketch();
+		JsonObject mca = new JsonObject();
+		
+		reader.beginObject();
+		while (reader.hasNext()) {
+			final String name = reader.nextName();
+			if (name.equals("likedPoints")) {
+				reader.beginArray();
+				while (reader.hasNext())
+					sketch.addLike(reader.nextDouble());
+				reader.endArray();
+			}
+			else if (name.equals("playbacks")) {
+				readPlaybacks(reader, sketch);
+			}
+			else if (name.equals("mca")) {
+				mca = new JsonParser().parse(reader).getAsJsonObject();
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		return new Aggregate(Collections.<Double>emptyList(), Collections.<PlaybackSession>emptyList(),
+				readMCAData(mca), sketch);
+	}
+	
+	/**
+	 * Helper method to stream the playback sessions into a sketch.
+	 * 
+	 * @param reader Reader positioned at the array of playback sessions
+	 * @param sketch The sketch to add the sessions to
+	 * @throws IOException When the stream cannot be read or is malformed
+	 */
+	private static void readPlaybacks(JsonReader reader, AggregateSketch sketch) throws IOException {
+		reader.beginArray();
+		while (reader.hasNext()) {
+			sketch.addPlayback();
+			reader.beginArray();
+			while (reader.hasNext()) {
+				reader.beginArray();
+				final double start = readNullableDouble(reader);
+				final double end = readNullableDouble(reader);
+				while (reader.hasNext())
+					reader.skipValue();
+				reader.endArray();
+				
+				sketch.addSegment(start, end);
+			}
+			reader.endArray();
+		}
+		reader.endArray();
+	}
+	
+	/**
+	 * Helper method to read a number, where null is read as 0 (as in
+	 * {@link PlayedSegment#fromJSONArray(JsonArray)}).
+	 * 
+	 * @param reader Reader positioned at a number or null
+	 * @return The number read
+	 * @throws IOException When the stream cannot be read or is malformed
+	 */
+	private static double readNullableDouble(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return 0;
+		}
+		return reader.nextDouble();
 	}
 	
 	/**
@@ -99,12 +262,11 @@ public class Aggregate {
 	 * Helper method to extract a map of MCA data from the JSON object
 	 * returned by the server.
 	 * 
-	 * @param aggregate JSON object returned by the server 
+	 * @param mca The "mca" member of the JSON object returned by the server 
 	 * @return A map of MCA data
 	 */
-	private Map<String, ? extends MCAData> readMCAData(JsonObject aggregate) {
+	private static Map<String, ? extends MCAData> readMCAData(JsonObject mca) {
 		Map<String, MCAData> res = new HashMap<String, MCAData>();
-		JsonObject mca = aggregate.get("mca").getAsJsonObject();
 		
 		for (Map.Entry<String, JsonElement> entry : mca.entrySet()) {
 			String name = entry.getKey();
@@ -134,6 +296,17 @@ public class Aggregate {
 			for (PlayedSegment playedSegment : playback)
 				durationEstimate = Math.max(durationEstimate, playedSegment.end);
 		
+		return estimateDuration(durationEstimate, mcaData);
+	}
+	
+	/**
+	 * Helper method to estimate the duration of a video.
+	 * 
+	 * @param durationEstimate Estimate based on the likes and playback sessions
+	 * @param mcaData Map of MCA data
+	 * @return Estimate of the video's duration, at most MAX_DURATION_ESTIMATE
+	 */
+	private static int estimateDuration(double durationEstimate, Map<String, ? extends MCAData> mcaData) {
 		for (Entry<String, ? extends MCAData> entry : mcaData.entrySet()) {
 			String name = entry.getKey();
 			MCAData curMCA = entry.getValue();
@@ -142,11 +315,11 @@ public class Aggregate {
 			if (name.equals("deeplinks") || curMCA.type == TYPE.CURVE)
 				continue;
 			
-			for (double point : curMCA.data)
+			for (double point : curMCA.values())
 				durationEstimate = Math.max(durationEstimate, point);
 		}
 		
-		return (int) Math.ceil(durationEstimate);
+		return (int) Math.min(Math.ceil(durationEstimate), MAX_DURATION_ESTIMATE);
 	}
 	
 	/**
@@ -155,6 +328,9 @@ public class Aggregate {
 	 * @return Total time in seconds people have watched this video
 	 */
 	public double timeWatched() {
+		if (_sketch != null)
+			return _sketch.timeWatched();
+		
 		double sum = 0;
 		for (PlaybackSession playback : playbacks)
 			for (PlayedSegment playedSegment : playback)
@@ -171,14 +347,45 @@ public class Aggregate {
 	 */
 	public double[] playbackHistogram() {
 		double[] histogram = new double[durationEstimate];
+		fillPlaybackHistogram(histogram);
+		return histogram;
+	}
+	
+	/**
+	 * Fills the first durationEstimate bins of a buffer with the playback
+	 * histogram. Each played segment is added to a difference array in
+	 * constant time, followed by a single prefix-sum pass.
+	 * 
+	 * @param histogram The buffer to be filled (length at least durationEstimate)
+	 */
+	private void fillPlaybackHistogram(double[] histogram) {
+		final int n = durationEstimate;
+		if (_sketch != null) {
+			_sketch.fillPlaybackHistogram(histogram, n);
+			return;
+		}
+		Arrays.fill(histogram, 0, n, 0);
 		
 		for (PlaybackSession playback : playbacks)
-			for (PlayedSegment playedSegment : playback)
-				for (int i = (int) playedSegment.start; i <= playedSegment.end
-						&& i <= durationEstimate; i++)
-					histogram[i]++;
+			for (PlayedSegment playedSegment : playback) {
+				final int first = Math.max((int) playedSegment.start, 0);
+				if (!(first <= playedSegment.end))
+					continue;
+				
+				final int last = (int) Math.min(Math.floor(playedSegment.end), n - 1);
+				if (last < first)
+					continue;
+				
+				histogram[first]++;
+				if (last + 1 < n)
+					histogram[last + 1]--;
+			}
 		
-		return histogram;
+		double count = 0;
+		for (int i = 0; i < n; i++) {
+			count += histogram[i];
+			histogram[i] = count;
+		}
 	}
 	
 	/**
@@ -192,7 +399,7 @@ public class Aggregate {
 		double[] curve = new double[curveSize];
 		
 		for (MCAData curMCA : mcaData.values()) {
-			if (curMCA.data.size() == 0)
+			if (curMCA.size() == 0)
 				continue;
 			
 			double[] curCurve = null;
@@ -200,15 +407,11 @@ public class Aggregate {
 			
 			switch (curMCA.type) {
 				case POINT:
-					SmoothedFunction f = new SmoothedFunction(curMCA.data);
+					SmoothedFunction f = new SmoothedFunction(curMCA.values());
 					curCurve = ArrayFunctions.projectOntoArray(f, new Range(0, durationEstimate), curveSize);
 					break;
 				case CURVE:
-					double[] dataArray = new double[curMCA.data.size()]; 
-					for (int i = 0; i < dataArray.length; i++) {
-						dataArray[i] = curMCA.data.get(i);
-					}
-					curCurve = ArrayFunctions.scaleArray(dataArray, curveSize);
+					curCurve = ArrayFunctions.scaleArray(curMCA.values(), curveSize);
 					break;
 				default:
 					assert false : "Unexpected MCA Type";
@@ -241,29 +444,97 @@ public class Aggregate {
 	 * @param heatmapSize The number of bins in the heat-map
 	 * @return A heat-map for the video
 	 * @see <a href="https://github.com/ShinNoNoir/likelines-player/blob/f8b02034d460a2fced95e4183cbd50c62e6d29ea/js/likelines.js#L660">JavaScript reference implementation</a>
+	 * @see #heatmap(double[], HeatmapScratch)
 	 */
 	public double[] heatmap(int heatmapSize) {
-		final double[] heatmap = new double[heatmapSize];
-		SmoothedFunction f = new SmoothedFunction(likedPoints);
-		final double[] smoothedLikes = ArrayFunctions.projectOntoArray(f, new Range(0, durationEstimate), heatmapSize);
-		final double[] scaledPlayback = ArrayFunctions.scaleArray(playbackHistogram(), heatmapSize);
-		final double[] scaledMCACurve = ArrayFunctions.scaleArray(combinedMCACurve(), heatmapSize);
-		
-		ArrayFunctions.normalize(smoothedLikes);
-		ArrayFunctions.normalize(scaledPlayback);
-		ArrayFunctions.normalize(scaledMCACurve);
+		final double[] precomputed = _precomputedHeatmaps.get(heatmapSize);
+		if (precomputed != null)
+			return precomputed.clone();
 		
-		// Weighted sum (for now, 1.0)
-		final double[][] timecodeEvidences = new double[][]{ smoothedLikes, scaledPlayback, scaledMCACurve };
-		final double WEIGHT = 1.0;
-
-		double scale = 0;
-		for (int i = 0; i < heatmapSize; i++) {
-			for (double[] timecodeEvidence : timecodeEvidences) {
-				heatmap[i] += Math.max(timecodeEvidence[i] * WEIGHT, 0);
-				scale = Math.max(scale, heatmap[i]);
-			}
+		return heatmap(new double[heatmapSize], HeatmapScratch.forCurrentThread());
+	}
+	
+	/**
+	 * Computes a heat-map ahead of time, so that {@link #heatmap(int)} can
+	 * return a copy of it.
+	 * 
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @return The precomputed heat-map (must not be modified)
+	 */
+	double[] precomputeHeatmap(int heatmapSize) {
+		double[] heatmap = _precomputedHeatmaps.get(heatmapSize);
+		if (heatmap == null) {
+			heatmap = heatmap(new double[heatmapSize], HeatmapScratch.forCurrentThread());
+			_precomputedHeatmaps.put(heatmapSize, heatmap);
 		}
+		return heatmap;
+	}
+	
+	/**
+	 * Adds a heat-map computed earlier, e.g., restored from a snapshot.
+	 * 
+	 * @param heatmap The heat-map (must not be modified afterwards)
+	 */
+	void addPrecomputedHeatmap(double[] heatmap) {
+		_precomputedHeatmaps.put(heatmap.length, heatmap);
+	}
+	
+	/**
+	 * @return The heat-maps computed ahead of time, by number of bins
+	 */
+	Map<Integer, double[]> precomputedHeatmaps() {
+		return Collections.unmodifiableMap(_precomputedHeatmaps);
+	}
+	
+	/**
+	 * @return The sketch of the sessions and likes, or null in exact mode
+	 */
+	AggregateSketch sketch() {
+		return _sketch;
+	}
+	
+	/**
+	 * Compute the heat-map into a caller-supplied array, using the current
+	 * thread's scratch buffers.
+	 * 
+	 * @param heatmap The output array; its length determines the number of bins
+	 * @return The given output array
+	 * @see #heatmap(double[], HeatmapScratch)
+	 */
+	public double[] heatmap(double[] heatmap) {
+		return heatmap(heatmap, HeatmapScratch.forCurrentThread());
+	}
+	
+	/**
+	 * Compute the heat-map into a caller-supplied array.
+	 * 
+	 * Each evidence curve is written into a reusable scratch buffer while its
+	 * normalization factor is tracked, after which a single pass combines
+	 * them. MCA curves are resampled once, directly to the heat-map size,
+	 * rather than to a per-second curve first. Once the scratch buffers have
+	 * grown to size, no arrays are allocated.
+	 * 
+	 * Above a size threshold, the bins of the smoothed liked points and the
+	 * MCA curves are computed in parallel on the shared {@link Parallel} pool.
+	 * Every bin is computed exactly as in the serial path and the curves are
+	 * summed in the same order, so the result is identical.
+	 * 
+	 * @param heatmap The output array; its length determines the number of bins
+	 * @param scratch Scratch buffers (not shared with other threads)
+	 * @return The given output array
+	 * @see <a href="https://github.com/ShinNoNoir/likelines-player/blob/f8b02034d460a2fced95e4183cbd50c62e6d29ea/js/likelines.js#L660">JavaScript reference implementation</a>
+	 */
+	public double[] heatmap(double[] heatmap, HeatmapScratch scratch) {
+		final int heatmapSize = heatmap.length;
+		scratch.ensureCapacity(heatmapSize, durationEstimate);
+		
+		final boolean parallel = useParallel(heatmapSize);
+		final double likesScale = parallel
+				? projectLikesParallel(heatmapSize, scratch)
+				: projectLikes(heatmapSize, 0, heatmapSize, scratch);
+		projectPlaybackAndMCA(heatmapSize, scratch, parallel);
+		
+		final double scale = combineEvidence(heatmap, 0, heatmapSize, scratch.likes, likesScale, scratch);
 		if (scale != 0) {
 			for (int i=0; i < heatmapSize; i++)
 				heatmap[i] /= scale;
@@ -271,4 +542,263 @@ public class Aggregate {
 
 		return heatmap;
 	}
+	
+	/**
+	 * Helper method to compute the smoothed liked points for the bins
+	 * [from, to) of a heat-map into scratch.likes.
+	 * 
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @param from The first bin
+	 * @param to The bin after the last one
+	 * @param scratch Scratch buffers, large enough for heatmapSize bins
+	 * @return The largest absolute value within the bins
+	 */
+	double projectLikes(int heatmapSize, int from, int to, HeatmapScratch scratch) {
+		return ArrayFunctions.projectInto(_likesFunction, _range, scratch.likes, heatmapSize, from, to);
+	}
+	
+	/**
+	 * Helper method to decide whether computing a heat-map is worth
+	 * splitting across the shared pool.
+	 * 
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @return True iff the heat-map should be computed in parallel
+	 */
+	private boolean useParallel(int heatmapSize) {
+		if (Parallel.parallelism() <= 1 || Parallel.isWorkerThread())
+			return false;
+		
+		long points = _likesFunction.size();
+		for (MCAData curMCA : mcaData.values())
+			points += curMCA.size();
+		return (long) heatmapSize * points >= PARALLEL_THRESHOLD;
+	}
+	
+	/**
+	 * Helper method to compute the smoothed liked points into scratch.likes,
+	 * splitting the bins across the shared pool.
+	 * 
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @param scratch Scratch buffers, large enough for heatmapSize bins
+	 * @return The largest absolute value
+	 */
+	private double projectLikesParallel(final int heatmapSize, final HeatmapScratch scratch) {
+		final int numTasks = Math.max(1, Math.min(Parallel.parallelism(), heatmapSize / MIN_BINS_PER_TASK));
+		final List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(numTasks);
+		
+		for (int t = 0; t < numTasks; t++) {
+			final int from = (int) ((long) heatmapSize * t / numTasks);
+			final int to = (int) ((long) heatmapSize * (t+1) / numTasks);
+			tasks.add(new Callable<Double>() {
+				@Override
+				public Double call() {
+					return projectLikes(heatmapSize, from, to, scratch);
+				}
+			});
+		}
+		
+		double scale = 0;
+		for (double taskScale : Parallel.invokeAll(tasks))
+			scale = Math.max(scale, taskScale);
+		return scale;
+	}
+	
+	/**
+	 * Helper method to compute upper bounds of the smoothed liked points for
+	 * blocks of consecutive heat-map bins.
+	 * 
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @param blockSize The number of bins per block
+	 * @param bounds Receives a bound per block (length at least
+	 *            ceil(heatmapSize / blockSize))
+	 */
+	void likesUpperBounds(int heatmapSize, int blockSize, double[] bounds) {
+		final double step = (_range.end-1.0 - _range.begin) / (heatmapSize-1);
+		_likesFunction.upperBoundOnBlocks(step, heatmapSize - 1, blockSize, bounds);
+		
+		// the last bin is evaluated at x = heatmapSize-1 rather than on the grid
+		final int gridBlocks = (heatmapSize - 1 + blockSize - 1) / blockSize;
+		final int lastBlock = (heatmapSize - 1) / blockSize;
+		final double last = _likesFunction.apply(heatmapSize - 1);
+		bounds[lastBlock] = lastBlock < gridBlocks ? Math.max(bounds[lastBlock], last) : last;
+	}
+	
+	/**
+	 * Helper method to compute the resized playback histogram and combined MCA
+	 * curve into scratch.playback and scratch.mcaSum, along with their
+	 * normalization factors.
+	 * 
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @param scratch Scratch buffers, large enough for heatmapSize bins
+	 */
+	void projectPlaybackAndMCA(int heatmapSize, HeatmapScratch scratch) {
+		projectPlaybackAndMCA(heatmapSize, scratch, false);
+	}
+	
+	/**
+	 * Helper method to compute the resized playback histogram and combined MCA
+	 * curve, optionally computing the MCA curves in parallel.
+	 * 
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @param scratch Scratch buffers, large enough for heatmapSize bins
+	 * @param parallel Whether to compute the MCA curves on the shared pool
+	 * @see #projectPlaybackAndMCA(int, HeatmapScratch)
+	 */
+	private void projectPlaybackAndMCA(int heatmapSize, HeatmapScratch scratch, boolean parallel) {
+		fillPlaybackHistogram(scratch.histogram);
+		scratch.playbackScale = ArrayFunctions.scaleInto(scratch.histogram, durationEstimate, scratch.playback, heatmapSize);
+		scratch.mcaScale = parallel
+				? sumMCACurvesParallel(scratch, heatmapSize)
+				: sumMCACurves(scratch, heatmapSize);
+	}
+	
+	/**
+	 * Helper method to sum the normalized evidence curves for the bins
+	 * [from, to) of a heat-map.
+	 * 
+	 * @param heatmap The output array
+	 * @param from The first bin
+	 * @param to The bin after the last one
+	 * @param smoothedLikes Smoothed liked points, or null to leave them out
+	 * @param likesScale Normalization factor of the smoothed liked points
+	 * @param scratch Scratch buffers holding the playback and MCA evidence
+	 * @return The maximum of the summed bins
+	 */
+	static double combineEvidence(double[] heatmap, int from, int to, double[] smoothedLikes,
+			double likesScale, HeatmapScratch scratch) {
+		final double[] scaledPlayback = scratch.playback;
+		final double[] scaledMCACurve = scratch.mcaSum;
+		
+		// Normalization is skipped for all-zero evidence
+		final double likesDiv = likesScale != 0 ? likesScale : 1;
+		final double playbackDiv = scratch.playbackScale != 0 ? scratch.playbackScale : 1;
+		final double mcaDiv = scratch.mcaScale != 0 ? scratch.mcaScale : 1;
+		
+		// Weighted sum (for now, 1.0)
+		final double WEIGHT = 1.0;
+
+		double scale = 0;
+		for (int i = from; i < to; i++) {
+			double v = smoothedLikes == null ? 0 : Math.max(smoothedLikes[i] / likesDiv * WEIGHT, 0);
+			v += Math.max(scaledPlayback[i] / playbackDiv * WEIGHT, 0);
+			v += Math.max(scaledMCACurve[i] / mcaDiv * WEIGHT, 0);
+			heatmap[i] = v;
+			scale = Math.max(scale, v);
+		}
+		return scale;
+	}
+	
+	/**
+	 * Helper method to compute the weighted sum of the normalized MCA curves,
+	 * each resampled directly to the heat-map size.
+	 * 
+	 * @param scratch Scratch buffers; the sum is written to mcaSum
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @return The largest absolute value of the weighted sum
+	 */
+	private double sumMCACurves(HeatmapScratch scratch, int heatmapSize) {
+		final double[] sum = scratch.mcaSum;
+		final double[] curve = scratch.mcaCurve;
+		Arrays.fill(sum, 0, heatmapSize, 0);
+		
+		double sumScale = 0;
+		for (MCAData curMCA : mcaData.values()) {
+			if (curMCA.size() == 0)
+				continue;
+			
+			final double curScale = projectMCACurve(curMCA, curve, heatmapSize);
+			if (Double.isNaN(curScale))
+				continue;
+			sumScale = addMCACurve(sum, curve, curScale, curMCA.weight, heatmapSize);
+		}
+		return sumScale;
+	}
+	
+	/**
+	 * Helper method to compute the weighted sum of the normalized MCA curves,
+	 * resampling the curves in parallel on the shared pool. The curves are
+	 * summed in the same order as in {@link #sumMCACurves(HeatmapScratch, int)}.
+	 * 
+	 * @param scratch Scratch buffers; the sum is written to mcaSum
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @return The largest absolute value of the weighted sum
+	 */
+	private double sumMCACurvesParallel(HeatmapScratch scratch, final int heatmapSize) {
+		final List<MCAData> sources = new ArrayList<MCAData>();
+		for (MCAData curMCA : mcaData.values())
+			if (curMCA.size() != 0)
+				sources.add(curMCA);
+		
+		if (sources.size() <= 1)
+			return sumMCACurves(scratch, heatmapSize);
+		
+		final double[][] curves = new double[sources.size()][];
+		final List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(sources.size());
+		for (int k = 0; k < curves.length; k++) {
+			final MCAData curMCA = sources.get(k);
+			final double[] curve = curves[k] = new double[heatmapSize];
+			tasks.add(new Callable<Double>() {
+				@Override
+				public Double call() {
+					return projectMCACurve(curMCA, curve, heatmapSize);
+				}
+			});
+		}
+		final List<Double> scales = Parallel.invokeAll(tasks);
+		
+		final double[] sum = scratch.mcaSum;
+		Arrays.fill(sum, 0, heatmapSize, 0);
+		
+		double sumScale = 0;
+		for (int k = 0; k < curves.length; k++) {
+			final double curScale = scales.get(k);
+			if (Double.isNaN(curScale))
+				continue;
+			sumScale = addMCACurve(sum, curves[k], curScale, sources.get(k).weight, heatmapSize);
+		}
+		return sumScale;
+	}
+	
+	/**
+	 * Helper method to resample an MCA curve to the heat-map size.
+	 * 
+	 * @param curMCA The MCA data
+	 * @param curve The output buffer (length at least heatmapSize)
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @return The largest absolute value of the curve, or NaN for an unknown type
+	 */
+	private double projectMCACurve(MCAData curMCA, double[] curve, int heatmapSize) {
+		final double[] values = curMCA.values();
+		
+		switch (curMCA.type) {
+			case POINT:
+				return ArrayFunctions.projectInto(new SmoothedFunction(values), _range, curve, heatmapSize);
+			case CURVE:
+				return ArrayFunctions.scaleInto(values, values.length, curve, heatmapSize);
+			default:
+				assert false : "Unexpected MCA Type";
+				return Double.NaN;
+		}
+	}
+	
+	/**
+	 * Helper method to add a normalized, weighted MCA curve to the sum.
+	 * 
+	 * @param sum The weighted sum of the previous curves
+	 * @param curve The curve to add
+	 * @param curScale The largest absolute value of the curve
+	 * @param weight The weight of the curve
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @return The largest absolute value of the new sum
+	 */
+	private static double addMCACurve(double[] sum, double[] curve, double curScale, double weight, int heatmapSize) {
+		final double curDiv = curScale != 0 ? curScale : 1;
+		
+		double sumScale = 0;
+		for (int i = 0; i < heatmapSize; i++) {
+			sum[i] += curve[i] / curDiv * weight;
+			sumScale = Math.max(sumScale, Math.abs(sum[i]));
+		}
+		return sumScale;
+	}
 }
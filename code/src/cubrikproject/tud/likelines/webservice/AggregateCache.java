@@ -0,0 +1,197 @@
+package cubrikproject.tud.likelines.webservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.binary.Hex;
+
+import cubrikproject.tud.likelines.util.Threads;
+
+/**
+ * On-disk cache tier for aggregates, stored as {@link AggregateSnapshot}s.
+ * 
+ * A cached snapshot is served immediately, even after a restart. Snapshots
+ * older than the revalidation interval are refreshed from the LikeLines
+ * server in the background, so the next request sees the new aggregate.
+ * Only a missing or unreadable snapshot makes a request wait for the server.
+ * 
+ */
+public class AggregateCache {
+	
+	/** Default interval after which snapshots are revalidated (ms) */
+	public static final long DEFAULT_REVALIDATE_AFTER = 5 * 60 * 1000;
+	
+	/** File extension of snapshots */
+	private static final String SNAPSHOT_EXTENSION = ".llag";
+	
+	/** Directory holding the snapshots */
+	private final File _dir;
+	
+	/** Interval after which snapshots are revalidated (ms) */
+	private final long _revalidateAfter;
+	
+	/** Background revalidation thread */
+	private final ExecutorService _revalidator;
+	
+	/** Snapshot files currently being revalidated */
+	private final Set<String> _revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	/**
+	 * Constructs a cache using the default revalidation interval.
+	 * 
+	 * @param dir Directory holding the snapshots (created if missing)
+	 */
+	public AggregateCache(File dir) {
+		this(dir, DEFAULT_REVALIDATE_AFTER);
+	}
+	
+	/**
+	 * Constructs a cache.
+	 * 
+	 * @param dir Directory holding the snapshots (created if missing)
+	 * @param revalidateAfter Interval after which snapshots are revalidated (ms)
+	 */
+	public AggregateCache(File dir, long revalidateAfter) {
+		_dir = dir;
+		_revalidateAfter = revalidateAfter;
+		
+		if (!_dir.exists())
+			_dir.mkdirs();
+		
+		_revalidator = Executors.newSingleThreadExecutor(Threads.ioThreadFactory("likelines-aggregate-revalidator-"));
+	}
+	
+	/**
+	 * Returns the aggregate of a video, from the cache if possible.
+	 * 
+	 * @param server The LikeLines server to aggregate the sessions
+	 * @param videoId Video ID. Format is "YouTube:<i>videoId</i>" for YouTube videos.
+	 * @param sketched Whether to summarize the sessions and likes by a sketch
+	 * @return An aggregation of user interaction sessions for the given video.
+	 * @throws IOException When there is no cached aggregate and the server cannot be reached
+	 */
+	public Aggregate get(LikeLinesWebService server, String videoId, boolean sketched) throws IOException {
+		final File file = snapshotFile(server, videoId, sketched);
+		
+		if (AggregateSnapshot.recover(file)) {
+			try {
+				final Aggregate aggregate = AggregateSnapshot.read(file);
+				if (System.currentTimeMillis() - file.lastModified() > _revalidateAfter)
+					revalidate(file, server, videoId, sketched);
+				return aggregate;
+			}
+			catch (IOException e) {
+				System.err.println(">>> AggregateCache: Discarding unreadable snapshot " + file + ": " + e.getMessage());
+				file.delete();
+			}
+		}
+		
+		return fetch(file, server, videoId, sketched);
+	}
+	
+	/**
+	 * Fetches the aggregate of a video from the server and replaces its
+	 * snapshot, e.g., after new MCA results were posted.
+	 * 
+	 * @param server The LikeLines server to aggregate the sessions
+	 * @param videoId Video ID. Format is "YouTube:<i>videoId</i>" for YouTube videos.
+	 * @param sketched Whether to summarize the sessions and likes by a sketch
+	 * @return The fetched aggregate
+	 * @throws IOException When the server cannot be reached
+	 */
+	public Aggregate refresh(LikeLinesWebService server, String videoId, boolean sketched) throws IOException {
+		return fetch(snapshotFile(server, videoId, sketched), server, videoId, sketched);
+	}
+	
+	/**
+	 * Stops the background revalidation. Pending revalidations are dropped.
+	 */
+	public void shutdown() {
+		_revalidator.shutdownNow();
+	}
+	
+	/**
+	 * Helper method to fetch an aggregate from the server and store it.
+	 * Failing to store the snapshot is logged, but not fatal.
+	 * 
+	 * @return The fetched aggregate
+	 */
+	private Aggregate fetch(File file, LikeLinesWebService server, String videoId, boolean sketched) throws IOException {
+		final Aggregate aggregate = server.aggregate(videoId, sketched);
+		if (aggregate == null)
+			throw new IOException("No aggregate for " + videoId);
+		
+		// the per-second heat-map is used for key frame detection
+		aggregate.precomputeHeatmap(aggregate.durationEstimate);
+		aggregate.precomputeHeatmap(aggregate.DEFAULT_HEATMAP_SIZE);
+		
+		try {
+			AggregateSnapshot.write(aggregate, file);
+		}
+		catch (IOException e) {
+			System.err.println(">>> AggregateCache: Could not store snapshot " + file + ": " + e.getMessage());
+		}
+		return aggregate;
+	}
+	
+	/**
+	 * Helper method to refresh a snapshot in the background, unless it is
+	 * already being refreshed.
+	 */
+	private void revalidate(final File file, final LikeLinesWebService server, final String videoId, final boolean sketched) {
+		final String key = file.getPath();
+		if (!_revalidating.add(key))
+			return;
+		
+		try {
+			_revalidator.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						fetch(file, server, videoId, sketched);
+					}
+					catch (IOException e) {
+						System.err.println(">>> AggregateCache: Revalidation failed, keeping snapshot of " + videoId + ": " + e.getMessage());
+					}
+					catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+					finally {
+						_revalidating.remove(key);
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			// rejected after shutdown
+			_revalidating.remove(key);
+		}
+	}
+	
+	/**
+	 * Helper method to determine the snapshot file of a video.
+	 * 
+	 * @return A file named after a digest of the server URL, video ID and mode
+	 */
+	private File snapshotFile(LikeLinesWebService server, String videoId, boolean sketched) {
+		final String key = server.serverUrl + "\n" + videoId + "\n" + (sketched ? "sketched" : "exact");
+		try {
+			final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			final byte[] digest = sha1.digest(key.getBytes("UTF-8"));
+			return new File(_dir, new String(Hex.encodeHex(digest)) + SNAPSHOT_EXTENSION);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 should be supported", e);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("UTF-8 should be supported", e);
+		}
+	}
+}
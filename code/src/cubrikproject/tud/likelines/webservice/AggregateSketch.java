@@ -0,0 +1,255 @@
+package cubrikproject.tud.likelines.webservice;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import cubrikproject.tud.likelines.util.SmoothedFunction;
+
+/**
+ * Fixed-size summary of the playback sessions and liked points of a video,
+ * used by a sketched {@link Aggregate}.
+ *
+ * Sessions and likes are streamed into the sketch one at a time, so memory
+ * grows with the length of the video rather than with its popularity:
+ * <ul>
+ * <li>Played segments are added to a per-second coverage counter as a
+ * difference array. Since the playback histogram is defined per
+ * video-second, it is reproduced <em>exactly</em>.</li>
+ * <li>Liked points are counted in bins of {@link #LIKES_BIN_WIDTH} seconds
+ * and represented by the bin centres. Each like therefore moves by at most
+ * half a bin width. As the slope of the standard Gaussian is at most
+ * 1/sqrt(2 pi e) (about 0.242), the smoothed likes (bandwidth h = 1) differ
+ * by at most 0.242 * LIKES_BIN_WIDTH / 2 (about 0.030) from exact mode at
+ * every point. The peak of the smoothed likes is at least 0.399 when all
+ * likes coincide and smaller otherwise, so the bound is relative to the
+ * density of the most-liked moment, not to the number of likes.</li>
+ * </ul>
+ * The time watched, the duration estimate and the number of sessions and
+ * likes are tracked exactly. Liked points that are not a number are ignored,
+ * and likes before the start of the video are counted in the first bin.
+ * Since the duration estimate is at most
+ * {@link Aggregate#MAX_DURATION_ESTIMATE}, the counters never grow beyond
+ * it: played segments are clamped to it as in exact mode, and likes far
+ * beyond it are counted in a last bin that is too far away to contribute.
+ */
+class AggregateSketch {
+
+	/** Width in seconds of a bin of the likes histogram */
+	static final double LIKES_BIN_WIDTH = 0.25;
+
+	/** Initial number of bins of the counters */
+	private static final int INITIAL_BINS = 1024;
+
+	/**
+	 * Last bin of the likes histogram: its centre lies more than 40 seconds
+	 * beyond the longest duration estimate, where the Gaussian (bandwidth 1)
+	 * of the likes in it underflows to zero
+	 */
+	private static final int LAST_LIKES_BIN = (int) ((Aggregate.MAX_DURATION_ESTIMATE + 40) / LIKES_BIN_WIDTH);
+
+	/** Coverage difference array: one entry per video-second, plus one */
+	private long[] _coverage = new long[INITIAL_BINS];
+
+	/** Number of likes per bin */
+	private long[] _likes = new long[INITIAL_BINS];
+
+	/** Number of playback sessions */
+	private int _numPlaybacks;
+
+	/** Number of liked points */
+	private int _numLikes;
+
+	/** Largest liked point */
+	private double _maxLike = Double.NEGATIVE_INFINITY;
+
+	/** Largest end-point of a played segment */
+	private double _maxEnd = Double.NEGATIVE_INFINITY;
+
+	/** Total time watched */
+	private double _timeWatched;
+
+	/**
+	 * Writes the sketch in the binary format of {@link AggregateSnapshot}.
+	 *
+	 * @param out The output to write to
+	 * @throws IOException When the sketch cannot be written
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(_numPlaybacks);
+		out.writeInt(_numLikes);
+		out.writeDouble(_maxLike);
+		out.writeDouble(_maxEnd);
+		out.writeDouble(_timeWatched);
+		writeCounters(out, _coverage);
+		writeCounters(out, _likes);
+	}
+
+	/**
+	 * Helper method to write a counter array without its trailing zeros.
+	 */
+	private static void writeCounters(DataOutput out, long[] counters) throws IOException {
+		int length = counters.length;
+		while (length > 0 && counters[length - 1] == 0)
+			length--;
+
+		out.writeInt(length);
+		for (int i = 0; i < length; i++)
+			out.writeLong(counters[i]);
+	}
+
+	/**
+	 * Reads a sketch written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in The buffer to read from
+	 * @return The sketch
+	 */
+	static AggregateSketch readFrom(ByteBuffer in) {
+		final AggregateSketch sketch = new AggregateSketch();
+		sketch._numPlaybacks = in.getInt();
+		sketch._numLikes = in.getInt();
+		sketch._maxLike = in.getDouble();
+		sketch._maxEnd = in.getDouble();
+		sketch._timeWatched = in.getDouble();
+		sketch._coverage = readCounters(in);
+		sketch._likes = readCounters(in);
+		return sketch;
+	}
+
+	/**
+	 * Helper method to read a counter array.
+	 */
+	private static long[] readCounters(ByteBuffer in) {
+		final long[] counters = new long[AggregateSnapshot.checkLength(in, 8)];
+		in.asLongBuffer().get(counters);
+		in.position(in.position() + 8 * counters.length);
+		return counters;
+	}
+
+	/**
+	 * Adds a liked point.
+	 *
+	 * @param point The liked point in seconds
+	 */
+	void addLike(double point) {
+		if (Double.isNaN(point))
+			return;
+
+		final int bin = (int) Math.max(Math.min(Math.floor(point / LIKES_BIN_WIDTH), LAST_LIKES_BIN), 0);
+		_likes = ensureLength(_likes, bin + 1);
+		_likes[bin]++;
+		_numLikes++;
+		_maxLike = Math.max(_maxLike, point);
+	}
+
+	/**
+	 * Marks the start of a new playback session.
+	 */
+	void addPlayback() {
+		_numPlaybacks++;
+	}
+
+	/**
+	 * Adds a played segment of the current playback session.
+	 *
+	 * @param start Starting point of the played segment
+	 * @param end End-point of the played segment
+	 */
+	void addSegment(double start, double end) {
+		_maxEnd = Math.max(_maxEnd, end);
+		_timeWatched += end - start;
+
+		// same clamping as Aggregate.fillPlaybackHistogram, up to the longest duration estimate
+		final int first = Math.max((int) start, 0);
+		if (!(first <= end))
+			return;
+
+		final int last = (int) Math.min(Math.floor(end), Aggregate.MAX_DURATION_ESTIMATE - 1);
+		if (last < first)
+			return;
+
+		_coverage = ensureLength(_coverage, last + 2);
+		_coverage[first]++;
+		_coverage[last + 1]--;
+	}
+
+	/**
+	 * Helper method to grow a counter array.
+	 *
+	 * @param array The counter array
+	 * @param length The minimum required length
+	 * @return The given array, or a larger copy of it
+	 */
+	private static long[] ensureLength(long[] array, int length) {
+		if (length <= array.length)
+			return array;
+		return Arrays.copyOf(array, Math.max(length, 2 * array.length));
+	}
+
+	/** @return The number of playback sessions */
+	int numPlaybacks() {
+		return _numPlaybacks;
+	}
+
+	/** @return The number of liked points */
+	int numLikes() {
+		return _numLikes;
+	}
+
+	/** @return The total time watched */
+	double timeWatched() {
+		return _timeWatched;
+	}
+
+	/**
+	 * Computes the lower bound of the duration estimate from the likes and
+	 * played segments, as in exact mode.
+	 *
+	 * @return The largest liked point (1 if there are none), or a larger
+	 *         end-point of a played segment
+	 */
+	double durationLowerBound() {
+		final double likes = _numLikes == 0 ? 1 : _maxLike;
+		return Math.max(likes, _maxEnd);
+	}
+
+	/**
+	 * Fills the first n bins of a buffer with the playback histogram.
+	 *
+	 * @param histogram The buffer to be filled (length at least n)
+	 * @param n The number of video-seconds (the duration estimate)
+	 */
+	void fillPlaybackHistogram(double[] histogram, int n) {
+		final int m = Math.min(n, _coverage.length);
+		long count = 0;
+		for (int i = 0; i < m; i++) {
+			count += _coverage[i];
+			histogram[i] = count;
+		}
+		Arrays.fill(histogram, m, n, 0);
+	}
+
+	/**
+	 * Creates the smoothed function over the binned liked points.
+	 *
+	 * @return A smoothed function with a weighted point per non-empty bin
+	 */
+	SmoothedFunction likesFunction() {
+		int nonEmpty = 0;
+		for (long count : _likes)
+			if (count != 0)
+				nonEmpty++;
+
+		final double[] points = new double[nonEmpty];
+		final double[] weights = new double[nonEmpty];
+		for (int bin = 0, k = 0; bin < _likes.length; bin++) {
+			if (_likes[bin] != 0) {
+				points[k] = (bin + 0.5) * LIKES_BIN_WIDTH;
+				weights[k] = _likes[bin];
+				k++;
+			}
+		}
+		return new SmoothedFunction(points, weights);
+	}
+}
@@ -0,0 +1,284 @@
+package cubrikproject.tud.likelines.webservice;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cubrikproject.tud.likelines.webservice.MCAData.TYPE;
+
+/**
+ * Compact binary snapshot of an {@link Aggregate} and its precomputed
+ * heat-maps.
+ *
+ * All values are stored big-endian as primitive arrays:
+ * <pre>
+ * int     magic ("LLAG")
+ * short   version
+ * byte    flags (bit 0: sketched)
+ * exact mode:
+ *   int likes, double[likes]
+ *   int sessions, int[sessions] segment counts, double[2 * segments] start/end pairs
+ * sketched mode:
+ *   the sketch's counters (see AggregateSketch)
+ * int mcas, per MCA: int length, byte[length] UTF-8 name, byte type, double weight, int n, double[n]
+ * int heatmaps, per heat-map: int bins, double[bins]
+ * </pre>
+ * Snapshots of another version are rejected, so the format can evolve
+ * without misreading older files.
+ */
+public class AggregateSnapshot {
+
+	/** File signature: "LLAG" */
+	private static final int MAGIC = 0x4C4C4147;
+
+	/** Current format version */
+	private static final short VERSION = 1;
+
+	/** Flag indicating a sketched aggregate */
+	private static final byte FLAG_SKETCHED = 1;
+
+	/**
+	 * Writes a snapshot of an aggregate and its precomputed heat-maps. The
+	 * snapshot is written to a temporary file first and then renamed, so
+	 * readers never see a partially written snapshot. Where a file cannot be
+	 * renamed over another one, the old snapshot is moved aside until the new
+	 * one is in place, and restored by {@link #recover(File)} if the process
+	 * dies in between.
+	 *
+	 * @param aggregate The aggregate
+	 * @param file The snapshot file
+	 * @throws IOException When the snapshot cannot be written
+	 */
+	public static void write(Aggregate aggregate, File file) throws IOException {
+		final File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			write(aggregate, out);
+		}
+		catch (IOException e) {
+			out.close();
+			tmp.delete();
+			throw e;
+		}
+		out.close();
+
+		if (!tmp.renameTo(file)) {
+			// renaming onto an existing file fails on some platforms
+			final File old = oldFile(file);
+			old.delete();
+			if (!file.renameTo(old) || !tmp.renameTo(file)) {
+				if (!file.exists())
+					old.renameTo(file);
+				tmp.delete();
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			}
+			old.delete();
+		}
+	}
+
+	/**
+	 * Restores the previous snapshot if the process died while replacing it.
+	 *
+	 * @param file The snapshot file
+	 * @return True iff the snapshot file exists
+	 */
+	public static boolean recover(File file) {
+		if (file.exists())
+			return true;
+		final File old = oldFile(file);
+		return old.exists() && old.renameTo(file);
+	}
+
+	/**
+	 * @return The file holding the previous snapshot while it is replaced
+	 */
+	private static File oldFile(File file) {
+		return new File(file.getPath() + ".old");
+	}
+
+	/**
+	 * Writes a snapshot of an aggregate and its precomputed heat-maps.
+	 *
+	 * @param aggregate The aggregate
+	 * @param out The output to write to
+	 * @throws IOException When the snapshot cannot be written
+	 */
+	public static void write(Aggregate aggregate, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeByte(aggregate.sketched ? FLAG_SKETCHED : 0);
+
+		if (aggregate.sketched) {
+			aggregate.sketch().writeTo(out);
+		}
+		else {
+			out.writeInt(aggregate.likedPoints.size());
+			for (double point : aggregate.likedPoints)
+				out.writeDouble(point);
+
+			out.writeInt(aggregate.playbacks.size());
+			for (PlaybackSession playback : aggregate.playbacks)
+				out.writeInt(playback.size());
+			for (PlaybackSession playback : aggregate.playbacks)
+				for (PlayedSegment playedSegment : playback) {
+					out.writeDouble(playedSegment.start);
+					out.writeDouble(playedSegment.end);
+				}
+		}
+
+		out.writeInt(aggregate.mcaData.size());
+		for (MCAData curMCA : aggregate.mcaData.values()) {
+			final byte[] name = curMCA.name.getBytes("UTF-8");
+			out.writeInt(name.length);
+			out.write(name);
+			out.writeByte(curMCA.type.ordinal());
+			out.writeDouble(curMCA.weight);
+			writeDoubles(out, curMCA.values());
+		}
+
+		final Map<Integer, double[]> heatmaps = aggregate.precomputedHeatmaps();
+		out.writeInt(heatmaps.size());
+		for (double[] heatmap : heatmaps.values())
+			writeDoubles(out, heatmap);
+	}
+
+	/**
+	 * Reads a snapshot file. The file is read into a heap buffer in one go
+	 * and closed before decoding; unlike a memory mapping, nothing keeps the
+	 * file open, so it can be replaced right away on all platforms.
+	 *
+	 * @param file The snapshot file
+	 * @return The restored aggregate, including its precomputed heat-maps
+	 * @throws IOException When the snapshot cannot be read or is invalid
+	 */
+	public static Aggregate read(File file) throws IOException {
+		final ByteBuffer buffer;
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Aggregate snapshot too large: " + file);
+			buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) != -1)
+				;
+			buffer.flip();
+		}
+		finally {
+			in.close();
+		}
+		return read(buffer);
+	}
+
+	/**
+	 * Reads a snapshot.
+	 *
+	 * @param in The buffer holding the snapshot
+	 * @return The restored aggregate, including its precomputed heat-maps
+	 * @throws IOException When the snapshot is invalid
+	 */
+	public static Aggregate read(ByteBuffer in) throws IOException {
+		try {
+			if (in.getInt() != MAGIC)
+				throw new IOException("Not an aggregate snapshot");
+			final short version = in.getShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported aggregate snapshot version: " + version);
+			final boolean sketched = (in.get() & FLAG_SKETCHED) != 0;
+
+			final List<Double> likedPoints = new ArrayList<Double>();
+			final List<PlaybackSession> playbacks = new ArrayList<PlaybackSession>();
+			AggregateSketch sketch = null;
+
+			if (sketched) {
+				sketch = AggregateSketch.readFrom(in);
+			}
+			else {
+				for (double point : readDoubles(in))
+					likedPoints.add(point);
+
+				final int[] segmentCounts = new int[checkLength(in, 4)];
+				in.asIntBuffer().get(segmentCounts);
+				in.position(in.position() + 4 * segmentCounts.length);
+
+				for (int count : segmentCounts) {
+					if (count < 0 || count > in.remaining() / 16)
+						throw new BufferUnderflowException();
+					final List<PlayedSegment> playedSegments = new ArrayList<PlayedSegment>(count);
+					for (int i = 0; i < count; i++)
+						playedSegments.add(new PlayedSegment(in.getDouble(), in.getDouble()));
+					playbacks.add(new PlaybackSession(playedSegments));
+				}
+			}
+
+			final int numMCA = in.getInt();
+			final Map<String, MCAData> mcaData = new HashMap<String, MCAData>();
+			for (int k = 0; k < numMCA; k++) {
+				final byte[] nameBytes = new byte[checkLength(in, 1)];
+				in.get(nameBytes);
+				final String name = new String(nameBytes, "UTF-8");
+				final TYPE type = TYPE.values()[in.get()];
+				final double weight = in.getDouble();
+				mcaData.put(name, new MCAData(name, type, weight, readDoubles(in)));
+			}
+
+			final Aggregate aggregate = new Aggregate(likedPoints, playbacks, mcaData, sketch);
+
+			final int numHeatmaps = in.getInt();
+			for (int k = 0; k < numHeatmaps; k++)
+				aggregate.addPrecomputedHeatmap(readDoubles(in));
+
+			return aggregate;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Truncated aggregate snapshot");
+		}
+		catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt aggregate snapshot");
+		}
+	}
+
+	/**
+	 * Helper method to write a length-prefixed array of doubles.
+	 */
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		out.writeInt(values.length);
+		for (double value : values)
+			out.writeDouble(value);
+	}
+
+	/**
+	 * Helper method to read a length-prefixed array of doubles.
+	 */
+	private static double[] readDoubles(ByteBuffer in) {
+		final double[] values = new double[checkLength(in, 8)];
+		in.asDoubleBuffer().get(values);
+		in.position(in.position() + 8 * values.length);
+		return values;
+	}
+
+	/**
+	 * Helper method to read the length of an array, making sure the buffer
+	 * holds that many elements.
+	 *
+	 * @param in The buffer
+	 * @param elementSize The size of an element in bytes
+	 * @return The length of the array
+	 */
+	static int checkLength(ByteBuffer in, int elementSize) {
+		final int length = in.getInt();
+		if (length < 0 || length > in.remaining() / elementSize)
+			throw new BufferUnderflowException();
+		return length;
+	}
+}
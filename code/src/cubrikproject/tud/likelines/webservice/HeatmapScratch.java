@@ -0,0 +1,69 @@
+package cubrikproject.tud.likelines.webservice;
+
+/**
+ * Reusable scratch buffers for computing heat-maps.
+ * 
+ * Buffers only grow, so repeatedly computing heat-maps of similar sizes does
+ * not allocate. Instances are not thread-safe; use {@link #forCurrentThread()}
+ * to obtain a per-thread instance.
+ * 
+ * @see Aggregate#heatmap(double[], HeatmapScratch)
+ */
+public class HeatmapScratch {
+	
+	/** Per-thread scratch buffers */
+	private static final ThreadLocal<HeatmapScratch> THREAD_SCRATCH = new ThreadLocal<HeatmapScratch>() {
+		@Override
+		protected HeatmapScratch initialValue() {
+			return new HeatmapScratch();
+		}
+	};
+	
+	/** Smoothed liked points */
+	double[] likes = new double[0];
+	
+	/** Playback histogram with a bin per video-second */
+	double[] histogram = new double[0];
+	
+	/** Playback histogram resized to the heat-map size */
+	double[] playback = new double[0];
+	
+	/** Current MCA curve resized to the heat-map size */
+	double[] mcaCurve = new double[0];
+	
+	/** Weighted sum of MCA curves */
+	double[] mcaSum = new double[0];
+	
+	/** Normalization factor of the playback evidence */
+	double playbackScale;
+	
+	/** Normalization factor of the MCA evidence */
+	double mcaScale;
+	
+	/**
+	 * Returns the scratch buffers of the current thread.
+	 * 
+	 * @return Scratch buffers owned by the current thread
+	 */
+	public static HeatmapScratch forCurrentThread() {
+		return THREAD_SCRATCH.get();
+	}
+	
+	/**
+	 * Makes sure all buffers are large enough.
+	 * 
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @param histogramSize The number of bins in the playback histogram
+	 */
+	void ensureCapacity(int heatmapSize, int histogramSize) {
+		if (likes.length < heatmapSize) {
+			likes = new double[heatmapSize];
+			playback = new double[heatmapSize];
+			mcaCurve = new double[heatmapSize];
+			mcaSum = new double[heatmapSize];
+		}
+		if (histogram.length < histogramSize) {
+			histogram = new double[histogramSize];
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package cubrikproject.tud.likelines.webservice;
+
+/**
+ * Outcome of computing the key frames of a single video in a bulk request.
+ * 
+ * @see LikeLinesWebService#getNKeyFrames(int, java.util.Collection)
+ */
+public class KeyFrameResult {
+	
+	/** The video ID */
+	public final String videoId;
+	
+	/** The time-codes of the key frames (null on failure) */
+	public final double[] timecodes;
+	
+	/** The reason of failure (null on success) */
+	public final Throwable error;
+	
+	/**
+	 * Constructs a KeyFrameResult.
+	 * 
+	 * @param videoId The video ID
+	 * @param timecodes The time-codes of the key frames, or null on failure
+	 * @param error The reason of failure, or null on success
+	 */
+	KeyFrameResult(String videoId, double[] timecodes, Throwable error) {
+		this.videoId = videoId;
+		this.timecodes = timecodes;
+		this.error = error;
+	}
+	
+	/**
+	 * @return True iff the key frames were computed
+	 */
+	public boolean isSuccess() {
+		return error == null;
+	}
+	
+	@Override
+	public String toString() {
+		return isSuccess()
+				? videoId + ": " + java.util.Arrays.toString(timecodes)
+				: videoId + ": " + error;
+	}
+}
@@ -0,0 +1,250 @@
+package cubrikproject.tud.likelines.webservice;
+
+import cubrikproject.tud.likelines.util.PeakDetector;
+import cubrikproject.tud.likelines.util.PointArray;
+import cubrikproject.tud.likelines.util.TopPoints;
+
+/**
+ * Coarse-to-fine search for the highest peaks of a heat-map.
+ *
+ * The playback and MCA evidence are cheap to compute at full resolution, but
+ * the smoothed liked points are not. The heat-map is therefore divided into
+ * blocks, and a coarse upper bound of the heat-map is derived for each block
+ * from the number of liked points in nearby blocks. The liked points are then
+ * only evaluated exactly for the most promising blocks (and their neighbours),
+ * round after round, until the bounds of the remaining blocks prove that they
+ * can neither hold one of the top N peaks nor change the normalization of the
+ * heat-map.
+ *
+ * Runs of evaluated blocks are extended whenever a candidate peak's
+ * preceding valley or confirming drop lies outside its run, so the result
+ * equals peak detection on the full heat-map. Bounds and extensions include
+ * ties, since the earlier of two equally high peaks ranks higher.
+ */
+class KeyFrameSearch {
+
+	/** Number of heat-map bins per block */
+	private static final int BLOCK_SIZE = 8;
+
+	/** Number of blocks evaluated per requested peak in the first round */
+	private static final int BLOCKS_PER_PEAK = 4;
+
+	/** Relative slack on bounds to absorb rounding differences */
+	private static final double BOUND_SLACK = 1e-9;
+
+	/**
+	 * Finds the N highest peaks of a heat-map.
+	 *
+	 * @param aggregate The aggregate to compute the heat-map of
+	 * @param heatmapSize The number of bins in the heat-map
+	 * @param delta Peak detection delta
+	 * @param n The (maximum) number of peaks to return
+	 * @param scratch Scratch buffers (not shared with other threads)
+	 * @return At most N peaks, ordered by descending y-coordinate
+	 */
+	static PointArray topPeaks(Aggregate aggregate, int heatmapSize, double delta, int n, HeatmapScratch scratch) {
+		if (n <= 0 || heatmapSize <= 0)
+			return new PointArray(1);
+
+		scratch.ensureCapacity(heatmapSize, aggregate.durationEstimate);
+		aggregate.projectPlaybackAndMCA(heatmapSize, scratch);
+
+		final int numBlocks = (heatmapSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		final double[] likesBound = new double[numBlocks];
+		aggregate.likesUpperBounds(heatmapSize, BLOCK_SIZE, likesBound);
+
+		// coarse bound of the playback and MCA evidence: the maximum per block
+		final double[] sums = new double[heatmapSize];
+		final double[] cheapBound = new double[numBlocks];
+		Aggregate.combineEvidence(sums, 0, heatmapSize, null, 0, scratch);
+		for (int i = 0; i < heatmapSize; i++)
+			cheapBound[i / BLOCK_SIZE] = Math.max(cheapBound[i / BLOCK_SIZE], sums[i]);
+
+		final boolean[] evaluated = new boolean[numBlocks];
+		final PointArray extensions = new PointArray();
+		int numEvaluated = 0;
+		double likesScale = 0;
+		int batch = n * BLOCKS_PER_PEAK;
+
+		while (numEvaluated < numBlocks) {
+			final TopPoints candidates = new TopPoints(batch);
+			for (int j = 0; j < numBlocks; j++)
+				if (!evaluated[j])
+					candidates.offer(j, bound(cheapBound[j], likesBound[j], likesScale));
+
+			final PointArray picked = candidates.toSortedArray();
+			for (int c = 0; c < picked.size(); c++) {
+				final int block = (int) picked.x(c);
+				for (int j = Math.max(block - 1, 0); j <= Math.min(block + 1, numBlocks - 1); j++)
+					if (!evaluated[j]) {
+						likesScale = Math.max(likesScale, evaluate(aggregate, j, heatmapSize, scratch));
+						evaluated[j] = true;
+						numEvaluated++;
+					}
+			}
+			for (int c = 0; c < extensions.size(); c++) {
+				final int j = (int) extensions.x(c);
+				if (!evaluated[j]) {
+					likesScale = Math.max(likesScale, evaluate(aggregate, j, heatmapSize, scratch));
+					evaluated[j] = true;
+					numEvaluated++;
+				}
+			}
+
+			// check whether the remaining blocks can still matter
+			double maxLikesBound = 0;
+			double maxBound = 0;
+			for (int j = 0; j < numBlocks; j++) {
+				if (!evaluated[j]) {
+					maxLikesBound = Math.max(maxLikesBound, likesBound[j] * (1 + BOUND_SLACK));
+					maxBound = Math.max(maxBound, bound(cheapBound[j], likesBound[j], likesScale));
+				}
+			}
+
+			final double scale = sumEvaluated(sums, evaluated, heatmapSize, likesScale, scratch);
+			extensions.clear();
+			final PointArray peaks = detect(sums, evaluated, heatmapSize, delta * scale, n, extensions);
+			final boolean likesScaleExact = maxLikesBound <= likesScale;
+			final boolean scaleExact = maxBound <= scale;
+			final boolean peaksFound = (peaks.size() == n)
+				? peaks.y(n - 1) > maxBound
+				: maxBound < delta * scale;
+
+			if (likesScaleExact && scaleExact && peaksFound && extensions.size() == 0)
+				break;
+			batch *= 2;
+		}
+
+		// normalize as in Aggregate.heatmap and detect the final peaks
+		final double scale = sumEvaluated(sums, evaluated, heatmapSize, likesScale, scratch);
+		if (scale != 0) {
+			for (int i = 0; i < heatmapSize; i++)
+				if (evaluated[i / BLOCK_SIZE])
+					sums[i] /= scale;
+		}
+		return detect(sums, evaluated, heatmapSize, delta, n, null);
+	}
+
+	/**
+	 * Helper method to evaluate the smoothed liked points of a block.
+	 *
+	 * @return The largest absolute value within the block
+	 */
+	private static double evaluate(Aggregate aggregate, int block, int heatmapSize, HeatmapScratch scratch) {
+		final int from = block * BLOCK_SIZE;
+		final int to = Math.min(from + BLOCK_SIZE, heatmapSize);
+		return aggregate.projectLikes(heatmapSize, from, to, scratch);
+	}
+
+	/**
+	 * Helper method to compute the upper bound of the heat-map in a block,
+	 * before the heat-map's own normalization.
+	 *
+	 * @param cheapBound Bound of the playback and MCA evidence
+	 * @param likesBound Bound of the smoothed liked points
+	 * @param likesScale Lower bound of the liked points' normalization factor
+	 * @return Upper bound of the heat-map in the block
+	 */
+	private static double bound(double cheapBound, double likesBound, double likesScale) {
+		// the slack keeps a block whose peak ties the N-th peak up to rounding in the search
+		final double cheap = cheapBound * (1 + BOUND_SLACK);
+		if (likesBound == 0)
+			return cheap;
+		if (likesScale == 0)
+			return cheap + 1;
+		return cheap + Math.min(likesBound * (1 + BOUND_SLACK) / likesScale, 1);
+	}
+
+	/**
+	 * Helper method to sum the evidence of all evaluated blocks.
+	 *
+	 * @return The maximum of the summed bins
+	 */
+	private static double sumEvaluated(double[] sums, boolean[] evaluated, int heatmapSize,
+			double likesScale, HeatmapScratch scratch) {
+		double scale = 0;
+		for (int j = 0; j < evaluated.length; j++) {
+			if (evaluated[j]) {
+				final int from = j * BLOCK_SIZE;
+				final int to = Math.min(from + BLOCK_SIZE, heatmapSize);
+				scale = Math.max(scale, Aggregate.combineEvidence(sums, from, to, scratch.likes, likesScale, scratch));
+			}
+		}
+		return scale;
+	}
+
+	/**
+	 * Helper method to detect the top N peaks within the runs of evaluated
+	 * blocks.
+	 *
+	 * A peak is only accepted if a value at least delta lower precedes it in
+	 * its run (or the run starts the heat-map), since otherwise its preceding
+	 * valley lies outside the run. Such peaks, as well as maxima that are not
+	 * confirmed before the end of their run, cause the neighbouring block to
+	 * be requested as an extension, provided they could enter the top N (ties
+	 * included, since the earlier of two equal peaks ranks higher).
+	 *
+	 * @param extensions Optional (null). Receives requested blocks as x-coordinates
+	 * @return At most N peaks, ordered by descending y-coordinate
+	 */
+	private static PointArray detect(final double[] heatmap, boolean[] evaluated, int heatmapSize,
+			final double delta, int n, PointArray extensions) {
+		final TopPoints top = new TopPoints(n);
+		if (!(delta > 0))
+			return top.toSortedArray();
+
+		final PointArray requests = new PointArray();
+		int j = 0;
+		while (j < evaluated.length) {
+			if (!evaluated[j]) {
+				j++;
+				continue;
+			}
+			int end = j;
+			while (end < evaluated.length && evaluated[end])
+				end++;
+
+			final int first = j;
+			final int from = j * BLOCK_SIZE;
+			final int to = Math.min(end * BLOCK_SIZE, heatmapSize);
+			final PeakDetector detector = new PeakDetector(delta, 0, new PeakDetector.Listener() {
+				@Override
+				public void onPeak(double x, double y) {
+					if (from == 0 || precededByValley(heatmap, from, (int) x - 1, y - delta))
+						top.offer(x, y);
+					else
+						requests.add(first - 1, y);
+				}
+
+				@Override
+				public void onValley(double x, double y) {}
+			});
+			for (int i = from; i < to; i++)
+				detector.add(i + 1, heatmap[i]);
+
+			if (end < evaluated.length && !Double.isNaN(detector.pendingPeakY()))
+				requests.add(end, detector.pendingPeakY());
+
+			j = end;
+		}
+
+		if (extensions != null) {
+			// a peak tying the N-th peak may still displace it, being earlier
+			final double threshold = top.threshold();
+			for (int r = 0; r < requests.size(); r++)
+				if (requests.y(r) * (1 + BOUND_SLACK) >= threshold)
+					extensions.add(requests.x(r), requests.y(r));
+		}
+		return top.toSortedArray();
+	}
+
+	/**
+	 * @return True iff a value of at most valley occurs in [from, pos)
+	 */
+	private static boolean precededByValley(double[] heatmap, int from, int pos, double valley) {
+		for (int i = from; i < pos; i++)
+			if (heatmap[i] <= valley)
+				return true;
+		return false;
+	}
+}
@@ -3,11 +3,22 @@ package cubrikproject.tud.likelines.webservice;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.URL;
 import java.net.URLEncoder;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -15,10 +26,12 @@ import javax.crypto.spec.SecretKeySpec;
 import org.apache.commons.codec.binary.Base64;
 
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
 
 import cubrikproject.tud.likelines.util.Ajax;
+import cubrikproject.tud.likelines.util.Parallel;
 import cubrikproject.tud.likelines.util.Peaks;
-import cubrikproject.tud.likelines.util.Peaks.Point;
+import cubrikproject.tud.likelines.util.Threads;
 
 /**
  * The proxy class to talk with a LikeLines server.
@@ -39,6 +52,9 @@ public class LikeLinesWebService {
 	/** The webservice call for posting MCA */
 	private static final String METHOD_POSTMCA = "postMCA?s=";
 	
+	/** Default maximum number of concurrent requests in bulk calls */
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+	
 	/** Default peak detection delta */
 	public final double DEFAULT_PEAK_DELTA = 0.1;
 	
@@ -120,6 +136,31 @@ public class LikeLinesWebService {
 		}
 		return null; /* should not reach */
 	}
+	
+	/**
+	 * Aggregate user interaction sessions for a given video, optionally
+	 * summarizing them by a bounded-memory sketch while they are streamed.
+	 * 
+	 * @param videoId Video ID for which interaction sessions need to be aggregated. Format is "YouTube:<i>videoId</i>" for YouTube videos.
+	 * @param sketched Whether to summarize the sessions and likes by a sketch (see {@link Aggregate#fromJSON(JsonReader, boolean)})
+	 * @return An aggregation of user interaction sessions for the given video.
+	 * @throws IOException
+	 */
+	public Aggregate aggregate(String videoId, boolean sketched) throws IOException {
+		if (!sketched)
+			return aggregate(videoId);
+		
+		String url = constructUrl(METHOD_AGGREGATE, "videoId", videoId);
+		
+		System.out.println(url);
+		final JsonReader reader = Ajax.openJSON(new URL(url));
+		try {
+			return Aggregate.fromJSON(reader, true);
+		}
+		finally {
+			reader.close();
+		}
+	}
 
 	
 	/**
@@ -136,6 +177,89 @@ public class LikeLinesWebService {
 		return getNKeyFrames(N, agg);
 	}
 	
+	/**
+	 * Computes the top N key frames for many videos.
+	 * 
+	 * @param N The (maximum) number of time-codes to be returned per video
+	 * @param videoIds The video IDs. For YouTube videos: YouTube:video_id.
+	 * @return A result per distinct video ID, in the order of the given IDs
+	 * @throws InterruptedException
+	 * @see #getNKeyFrames(int, Collection, int)
+	 */
+	public Map<String, KeyFrameResult> getNKeyFrames(int N, Collection<String> videoIds) throws InterruptedException {
+		return getNKeyFrames(N, videoIds, DEFAULT_MAX_CONNECTIONS);
+	}
+	
+	/**
+	 * Computes the top N key frames for many videos.
+	 * 
+	 * Aggregates are fetched by up to maxConnections concurrent requests.
+	 * As soon as an aggregate has arrived, its heat-map and peaks are
+	 * computed on the shared {@link Parallel} pool while other fetches are
+	 * still in flight. A failure only affects the result of its own video.
+	 * 
+	 * @param N The (maximum) number of time-codes to be returned per video
+	 * @param videoIds The video IDs. For YouTube videos: YouTube:video_id.
+	 * @param maxConnections The maximum number of concurrent requests to the server
+	 * @return A result per distinct video ID, in the order of the given IDs
+	 * @throws InterruptedException When interrupted while waiting for the results
+	 */
+	public Map<String, KeyFrameResult> getNKeyFrames(final int N, Collection<String> videoIds, int maxConnections)
+			throws InterruptedException {
+		final Set<String> distinctIds = new LinkedHashSet<String>(videoIds);
+		final Map<String, Future<Future<double[]>>> pending = new LinkedHashMap<String, Future<Future<double[]>>>();
+		final ExecutorService fetchers = Executors.newFixedThreadPool(Math.max(1, Math.min(maxConnections, distinctIds.size())),
+				Threads.ioThreadFactory("likelines-fetch-"));
+		final List<Future<double[]>> jobs = new ArrayList<Future<double[]>>();
+		
+		try {
+			for (final String videoId : distinctIds) {
+				pending.put(videoId, fetchers.submit(new Callable<Future<double[]>>() {
+					@Override
+					public Future<double[]> call() throws IOException {
+						final Aggregate agg = aggregate(videoId);
+						if (agg == null)
+							throw new IOException("No aggregate for " + videoId);
+						
+						final Future<double[]> job = Parallel.submit(new Callable<double[]>() {
+							@Override
+							public double[] call() {
+								return getNKeyFrames(N, agg);
+							}
+						});
+						synchronized (jobs) {
+							if (fetchers.isShutdown())
+								job.cancel(true);
+							else
+								jobs.add(job);
+						}
+						return job;
+					}
+				}));
+			}
+			
+			final Map<String, KeyFrameResult> results = new LinkedHashMap<String, KeyFrameResult>();
+			for (Map.Entry<String, Future<Future<double[]>>> entry : pending.entrySet()) {
+				final String videoId = entry.getKey();
+				try {
+					results.put(videoId, new KeyFrameResult(videoId, entry.getValue().get().get(), null));
+				}
+				catch (ExecutionException e) {
+					results.put(videoId, new KeyFrameResult(videoId, null, e.getCause()));
+				}
+			}
+			return results;
+		}
+		finally {
+			// jobs submitted after this point are cancelled by their fetchers
+			synchronized (jobs) {
+				fetchers.shutdownNow();
+				for (Future<double[]> job : jobs)
+					job.cancel(true);
+			}
+		}
+	}
+	
 	/**
 	 * Computes the top N key frames for a queried video and returns the
 	 * time-codes of these key frames.
@@ -147,18 +271,27 @@ public class LikeLinesWebService {
 	 */
 	public double[] getNKeyFrames(int N, Aggregate aggregate) {
 		double[] heatmap = aggregate.heatmap(aggregate.durationEstimate);
-		Peaks peaks = Peaks.extract(heatmap, null, DEFAULT_PEAK_DELTA);
-		
-		double[] timecodes = new double[Math.min(N, peaks.peaks.size())];
-		Collections.sort(peaks.peaks, new Comparator<Point>() {
-			@Override public int compare(Point p1, Point p2) {
-				return -Double.compare(p1.y, p2.y);
-			}
-		});
-		for (int i = 0; i < timecodes.length; i++) {
-			timecodes[i] = peaks.peaks.get(i).x;
-		}
-		return timecodes;
+		return Peaks.extractTopPeaks(heatmap, null, DEFAULT_PEAK_DELTA, N).xs();
+	}
+	
+	/**
+	 * Computes the top N key frames for a queried video using a
+	 * coarse-to-fine search and returns the time-codes of these key frames.
+	 * 
+	 * Instead of computing the full heat-map, coarse bounds are used to only
+	 * evaluate the liked points around the candidate peaks. This is
+	 * considerably faster for long videos whose likes are concentrated in a
+	 * few places, and yields the same time-codes as
+	 * {@link #getNKeyFrames(int, Aggregate)}, in the same order: of equally
+	 * high peaks, the earlier one ranks higher (see {@link KeyFrameSearch}).
+	 * 
+	 * @param N The (maximum) number of time-codes to be returned 
+	 * @param aggregate A previously retrieved Aggregate object for a video.
+	 * @return At most N time-codes.
+	 */
+	public double[] getNKeyFramesCoarseToFine(int N, Aggregate aggregate) {
+		return KeyFrameSearch.topPeaks(aggregate, aggregate.durationEstimate, DEFAULT_PEAK_DELTA, N,
+				HeatmapScratch.forCurrentThread()).xs();
 	}
 	
 	/**
@@ -1,8 +1,5 @@
 package cubrikproject.tud.likelines.webservice;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -30,8 +27,14 @@ public class MCAData {
 	/** The MCA algorithm's output weight (if missing: 1.0) */
 	public final double weight;
 	
-	/** The MCA algorithm's output */
-	public List<? extends Double> data;
+	/** Undecoded output of the MCA algorithm (null once decoded) */
+	private JsonArray _json;
+	
+	/** Number of values in the MCA algorithm's output */
+	private final int _size;
+	
+	/** Decoded output of the MCA algorithm (null until first use) */
+	private double[] _values;
 	
 	/**
 	 * Constructs an MCAData object.
@@ -42,14 +45,63 @@ public class MCAData {
 	 *            The type of the MCA algorithm's output
 	 * @param weight
 	 *            The weight of the MCA algorithm's output
-	 * @param data
-	 *            The output of the MCA algorithm
+	 * @param json
+	 *            The undecoded output of the MCA algorithm
 	 */
-	private MCAData(String name, TYPE type, double weight, List<? extends Double> data) {
+	private MCAData(String name, TYPE type, double weight, JsonArray json) {
 		this.name = name;
 		this.type = type;
 		this.weight = weight;
-		this.data = data;
+		_json = json;
+		_size = json.size();
+	}
+	
+	/**
+	 * Constructs an MCAData object from decoded values.
+	 * 
+	 * @param name
+	 *            The name of the MCA algorithm
+	 * @param type
+	 *            The type of the MCA algorithm's output
+	 * @param weight
+	 *            The weight of the MCA algorithm's output
+	 * @param values
+	 *            The output of the MCA algorithm (not copied)
+	 */
+	MCAData(String name, TYPE type, double weight, double[] values) {
+		this.name = name;
+		this.type = type;
+		this.weight = weight;
+		_values = values;
+		_size = values.length;
+	}
+	
+	/**
+	 * Returns the number of values in the MCA algorithm's output, without
+	 * decoding them.
+	 * 
+	 * @return The number of values
+	 */
+	public int size() {
+		return _size;
+	}
+	
+	/**
+	 * Returns the MCA algorithm's output. The values are decoded on first use
+	 * and shared afterwards, so the array must not be modified.
+	 * 
+	 * @return The MCA algorithm's output
+	 */
+	public synchronized double[] values() {
+		if (_values == null) {
+			final double[] values = new double[_size];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = _json.get(i).getAsDouble();
+			}
+			_values = values;
+			_json = null;
+		}
+		return _values;
 	}
 	
 	/**
@@ -68,12 +120,9 @@ public class MCAData {
 		JsonElement jsonWeight = mca.get("weight");
 		double weight = jsonWeight == null ? 1.0 : jsonWeight.getAsDouble();
 		
+		// decoding the data is deferred until it is used
 		JsonArray jsonData = mca.get("data").getAsJsonArray();
-		List<Double> data = new ArrayList<Double>(jsonData.size());
-		for (JsonElement jsonValue : jsonData) {
-			data.add(jsonValue.getAsDouble());
-		}
 		
-		return new MCAData(name, type, weight, data);
+		return new MCAData(name, type, weight, jsonData);
 	}
 }
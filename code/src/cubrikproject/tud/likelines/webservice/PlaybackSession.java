@@ -22,7 +22,7 @@ public class PlaybackSession implements Iterable<PlayedSegment>{
 	 * 
 	 * @param playedSegments A list of PlayedSegments
 	 */
-	private PlaybackSession(List<PlayedSegment> playedSegments) {
+	PlaybackSession(List<PlayedSegment> playedSegments) {
 		this.playedSegments = playedSegments;
 	}
 	
@@ -43,6 +43,13 @@ public class PlaybackSession implements Iterable<PlayedSegment>{
 	}
 	
 
+	/**
+	 * @return The number of played segments
+	 */
+	public int size() {
+		return playedSegments.size();
+	}
+	
 	@Override
 	public Iterator<PlayedSegment> iterator() {
 		return playedSegments.iterator();
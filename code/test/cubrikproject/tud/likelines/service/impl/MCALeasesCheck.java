@@ -0,0 +1,275 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link MCALeases} across JVMs: separate node processes share a
+ * lease directory, as nodes share an index storage.
+ * <ul>
+ * <li>Contention: several nodes index the same videos; each video must be
+ * indexed by exactly one node.</li>
+ * <li>Crash: a node dies while holding leases; the other nodes must break
+ * them once they are stale, and not before.</li>
+ * <li>Lost lease: a node renews its lease too late; another node breaks
+ * it, and the first node must be told through its listener within a
+ * renewal period.</li>
+ * </ul>
+ *
+ * Usage: java cubrikproject.tud.likelines.service.impl.MCALeasesCheck [sharedDir]
+ * <br>
+ * The shared directory defaults to a temporary one. Pass a directory on NFS
+ * to check the leases on it; the nodes still run on this host.
+ */
+public class MCALeasesCheck {
+
+	/** Time (ms) after which a done marker expires */
+	private static final long DONE_RETENTION = 60 * 60 * 1000;
+
+	/** Time (ms) after which a node gives up */
+	private static final long DEADLINE = 30000;
+
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("node")) {
+			runNode(args);
+			return;
+		}
+
+		final File root = (args.length > 0) ? new File(args[0])
+				: new File(System.getProperty("java.io.tmpdir"), "LL_MCALeasesCheck_" + System.currentTimeMillis());
+
+		checkContention(new File(root, "contention"));
+		checkCrash(new File(root, "crash"));
+		checkLostLease(new File(root, "lost"));
+		delete(root);
+
+		System.out.println((failures == 0) ? "OK" : failures + " failure(s)");
+		if (failures != 0)
+			System.exit(1);
+	}
+
+	private static void checkContention(File dir) throws Exception {
+		final List<String> videos = videos("contention", 40);
+		final List<Process> nodes = new ArrayList<Process>();
+		for (int i = 0; i < 4; i++)
+			nodes.add(startNode(dir, "node" + i, 2000, "index", videos));
+
+		final List<String[]> events = collect(nodes);
+		final Map<String, Integer> indexed = count(events, "INDEXED");
+		for (String video : videos)
+			expect(Integer.valueOf(1).equals(indexed.get(video)),
+					"contention: " + video + " indexed " + indexed.get(video) + " time(s)");
+	}
+
+	private static void checkCrash(File dir) throws Exception {
+		final List<String> videos = videos("crash", 5);
+		final long leaseDuration = 1000;
+
+		final List<String[]> claims = collect(Collections.singletonList(startNode(dir, "crasher", leaseDuration, "crash", videos)));
+		expect(count(claims, "CLAIMED").size() == videos.size(), "crash: the crasher claimed " + claims.size() + " video(s)");
+		long claimedAt = 0;
+		for (String[] event : claims)
+			claimedAt = Math.max(claimedAt, Long.parseLong(event[2]));
+
+		final List<Process> nodes = new ArrayList<Process>();
+		for (int i = 0; i < 2; i++)
+			nodes.add(startNode(dir, "survivor" + i, leaseDuration, "index", videos));
+
+		final List<String[]> events = collect(nodes);
+		final Map<String, Integer> indexed = count(events, "INDEXED");
+		for (String video : videos)
+			expect(Integer.valueOf(1).equals(indexed.get(video)),
+					"crash: " + video + " indexed " + indexed.get(video) + " time(s)");
+		for (String[] event : events)
+			if (event[0].equals("INDEXED"))
+				expect(Long.parseLong(event[2]) > claimedAt + leaseDuration,
+						"crash: " + event[1] + " taken over at " + event[2] + " before its lease of " + claimedAt + " expired");
+	}
+
+	private static void checkLostLease(File dir) throws Exception {
+		final List<String> videos = videos("lost", 1);
+		// the slow node renews every 3 s, while the fast node breaks leases older than 1 s
+		final long slowLeaseDuration = 9000;
+		final long renewPeriod = slowLeaseDuration / 3;
+
+		final Process slow = startNode(dir, "slow", slowLeaseDuration, "hold", videos);
+		Thread.sleep(500);
+		final Process fast = startNode(dir, "fast", 1000, "index", videos);
+
+		final List<String[]> events = collect(Arrays.asList(slow, fast));
+		final Map<String, Integer> indexed = count(events, "INDEXED");
+		final Map<String, Integer> lost = count(events, "LOST");
+		expect(Integer.valueOf(1).equals(indexed.get(videos.get(0))), "lost lease: the fast node did not take over");
+		expect(Integer.valueOf(1).equals(lost.get(videos.get(0))), "lost lease: the slow node was not told");
+
+		long takenOverAt = -1, lostAt = -1;
+		for (String[] event : events) {
+			if (event[0].equals("INDEXED"))
+				takenOverAt = Long.parseLong(event[2]);
+			else if (event[0].equals("LOST"))
+				lostAt = Long.parseLong(event[2]);
+		}
+		if (takenOverAt >= 0 && lostAt >= 0)
+			expect(lostAt - takenOverAt <= renewPeriod + 1000,
+					"lost lease: the slow node was told " + (lostAt - takenOverAt) + " ms after the take-over");
+	}
+
+	/**
+	 * Runs a node: node DIR NODE_ID LEASE_MS MODE VIDEO...
+	 * <ul>
+	 * <li>index: claims the videos until all are done, indexing each one
+	 * claimed for a while;</li>
+	 * <li>crash: claims the videos and dies without releasing them;</li>
+	 * <li>hold: claims the videos and holds them until their leases are
+	 * lost.</li>
+	 * </ul>
+	 * Events are printed as lines: EVENT VIDEO TIME [END_TIME].
+	 */
+	private static void runNode(String[] args) throws Exception {
+		final File dir = new File(args[1]);
+		final String nodeId = args[2];
+		final long leaseDuration = Long.parseLong(args[3]);
+		final String mode = args[4];
+		final List<String> videos = new ArrayList<String>(Arrays.asList(args).subList(5, args.length));
+		final List<String> lost = Collections.synchronizedList(new ArrayList<String>());
+
+		final MCALeases leases = new MCALeases(dir, nodeId, leaseDuration, DONE_RETENTION, new MCALeases.Listener() {
+			@Override
+			public void onLeaseLost(String videoId) {
+				lost.add(videoId);
+				System.out.println("LOST " + videoId + " " + System.currentTimeMillis());
+			}
+		});
+
+		final long deadline = System.currentTimeMillis() + DEADLINE;
+		final Random rnd = new Random(nodeId.hashCode());
+		if (mode.equals("crash")) {
+			for (String video : videos)
+				if (leases.claim(video) == MCALeases.Claim.CLAIMED)
+					System.out.println("CLAIMED " + video + " " + System.currentTimeMillis());
+			System.out.flush();
+			Runtime.getRuntime().halt(0);
+		}
+		else if (mode.equals("hold")) {
+			for (String video : videos)
+				leases.claim(video);
+			while (lost.size() < videos.size() && System.currentTimeMillis() < deadline)
+				Thread.sleep(50);
+		}
+		else {
+			final List<String> remaining = new ArrayList<String>(videos);
+			while (!remaining.isEmpty() && System.currentTimeMillis() < deadline) {
+				Collections.shuffle(remaining, rnd);
+				for (String video : new ArrayList<String>(remaining)) {
+					final MCALeases.Claim claim = leases.claim(video);
+					if (claim == MCALeases.Claim.CLAIMED) {
+						final long start = System.currentTimeMillis();
+						Thread.sleep(20 + rnd.nextInt(40));
+						leases.markDone(video);
+						System.out.println("INDEXED " + video + " " + start + " " + System.currentTimeMillis());
+						leases.release(video);
+					}
+					if (claim != MCALeases.Claim.HELD)
+						remaining.remove(video);
+				}
+				Thread.sleep(50);
+			}
+		}
+		leases.shutdown();
+	}
+
+	private static Process startNode(File dir, String nodeId, long leaseDuration, String mode, List<String> videos) throws IOException {
+		final List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(MCALeasesCheck.class.getName());
+		command.add("node");
+		command.add(dir.getPath());
+		command.add(nodeId);
+		command.add("" + leaseDuration);
+		command.add(mode);
+		command.addAll(videos);
+		return new ProcessBuilder(command).redirectErrorStream(true).start();
+	}
+
+	/**
+	 * Helper method to wait for nodes and collect their events. Other output
+	 * (e.g., log lines) is echoed.
+	 */
+	private static List<String[]> collect(List<Process> nodes) throws Exception {
+		final List<String[]> events = Collections.synchronizedList(new ArrayList<String[]>());
+		final List<Thread> readers = new ArrayList<Thread>();
+		for (final Process node : nodes) {
+			final Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final BufferedReader in = new BufferedReader(new InputStreamReader(node.getInputStream(), "UTF-8"));
+						String line;
+						while ((line = in.readLine()) != null) {
+							final String[] event = line.split(" ");
+							if (event.length >= 3 && event[0].matches("CLAIMED|INDEXED|LOST"))
+								events.add(event);
+							else
+								System.out.println("  " + line);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			reader.start();
+			readers.add(reader);
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			nodes.get(i).waitFor();
+			readers.get(i).join();
+		}
+		return events;
+	}
+
+	private static Map<String, Integer> count(List<String[]> events, String kind) {
+		final Map<String, Integer> res = new HashMap<String, Integer>();
+		for (String[] event : events) {
+			if (!event[0].equals(kind))
+				continue;
+			final Integer count = res.get(event[1]);
+			res.put(event[1], (count == null) ? 1 : count + 1);
+		}
+		return res;
+	}
+
+	private static List<String> videos(String prefix, int n) {
+		final List<String> res = new ArrayList<String>();
+		for (int i = 0; i < n; i++)
+			res.add("YouTube:" + prefix + i);
+		return res;
+	}
+
+	private static void expect(boolean condition, String failure) {
+		if (!condition) {
+			failures++;
+			System.out.println("FAIL " + failure);
+		}
+	}
+
+	private static void delete(File file) {
+		final File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
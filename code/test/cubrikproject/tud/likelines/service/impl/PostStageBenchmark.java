@@ -0,0 +1,210 @@
+package cubrikproject.tud.likelines.service.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+
+import cubrikproject.tud.likelines.service.interfaces.MCAQueueStatus;
+import cubrikproject.tud.likelines.util.Threads;
+
+/**
+ * Benchmark of the I/O-bound stages of the MCA pipeline: N analyzed videos
+ * are resumed from the MCA journal, and {@link LLIndexer} posts their results
+ * through {@link cubrikproject.tud.likelines.webservice.LikeLinesWebService}
+ * to a local stand-in LikeLines server that answers every request after a
+ * fixed latency.
+ *
+ * Usage: PostStageBenchmark [videos [latencyMs]]
+ * <br>
+ * Run with -Dlikelines.virtualThreads=true on Java 21 or later to compare
+ * virtual threads (a post worker per pipeline slot) with the default
+ * platform workers (mcaPostWorkers).
+ */
+public class PostStageBenchmark {
+
+	private static final String SECRET_KEY = "KdIkbO9S+fA/sFuXCktB/G6Vip14BR9B";
+
+	/** Requests being answered by the stand-in server, and their maximum */
+	private static final AtomicInteger inFlight = new AtomicInteger();
+	private static final AtomicInteger peakInFlight = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		final int videos = (args.length > 0) ? Integer.parseInt(args[0]) : 3000;
+		final int latency = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+		final ServerSocket server = new ServerSocket(0, videos, InetAddress.getByName("127.0.0.1"));
+		startStandInServer(server, latency);
+		final String serverUrl = "http://127.0.0.1:" + server.getLocalPort() + "/";
+
+		final File storage = new File(System.getProperty("java.io.tmpdir"), "LL_PostStageBenchmark_" + System.currentTimeMillis());
+		prepareStorage(storage, serverUrl, videos);
+
+		final Properties props = new Properties();
+		props.setProperty("indexStoragePath", storage.getPath());
+		props.setProperty("nodeId", "benchmark");
+		props.setProperty("secretKeys", SECRET_KEY + " " + serverUrl);
+		props.setProperty("mcaQueueSize", "" + videos);
+		if (Threads.usesVirtualThreads())
+			props.setProperty("virtualThreads", "true");
+
+		System.out.println("Videos: " + videos + ", latency: " + latency + " ms per request");
+		final long start = System.currentTimeMillis();
+		final LLIndexer indexer = new LLIndexer(props);
+		MCAQueueStatus status;
+		while ((status = indexer.getMCAQueueStatus()).active > 0)
+			Thread.sleep(10);
+		final long elapsed = System.currentTimeMillis() - start;
+
+		System.out.println("Virtual threads: " + Threads.usesVirtualThreads()
+				+ (Threads.virtualThreadsSupported() ? "" : " (not supported by this JVM)")
+				+ ", post workers: " + status.get("POST").workers);
+		System.out.println("Finished: " + status.finished + ", failed: " + status.failed);
+		System.out.println(String.format(Locale.US, "Wall time: %d ms (%.1f videos/s)",
+				elapsed, 1000.0 * status.finished / Math.max(elapsed, 1)));
+		System.out.println("Peak concurrent requests: " + peakInFlight.get());
+		System.out.println("Peak platform threads: " + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+
+		indexer.deactivate();
+		server.close();
+		delete(storage);
+	}
+
+	/**
+	 * Helper method to journal N videos as analyzed, with their artifacts
+	 * and a cached validation of the secret key.
+	 */
+	private static void prepareStorage(File storage, String serverUrl, int videos) throws Exception {
+		storage.mkdirs();
+		final StringBuilder journal = new StringBuilder();
+		for (int i = 0; i < videos; i++) {
+			final String youtubeId = String.format(Locale.US, "bench%06d", i);
+			write(new File(storage, "mca-" + youtubeId + ".mp4"), "");
+			write(new File(storage, "mca-" + youtubeId + "-fetch.json"), "{\"deeplinks\":[12,34],\"duration\":60,\"metadataPosted\":false}");
+			write(new File(storage, "mca-" + youtubeId + "-motion.json"), "{\"motionActivity\":[1,2,3,2,1]}");
+			journal.append(System.currentTimeMillis()).append("\tYouTube:").append(youtubeId)
+				.append("\tANALYZED\t").append(serverUrl).append("\ttrue\n");
+		}
+		write(new File(storage, "mca-journal-benchmark.log"), journal.toString());
+
+		final String hash = new String(Hex.encodeHex(MessageDigest.getInstance("SHA-1").digest(SECRET_KEY.getBytes("UTF-8"))));
+		final Properties keys = new Properties();
+		keys.setProperty(serverUrl, System.currentTimeMillis() + " " + hash + " true");
+		final OutputStream out = new FileOutputStream(new File(storage, "secret-keys.cache"));
+		try {
+			keys.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void write(File file, String content) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		final File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	/**
+	 * Helper method to serve each connection on its own thread.
+	 */
+	private static void startStandInServer(final ServerSocket server, final int latency) {
+		final ExecutorService handlers = Executors.newCachedThreadPool(Threads.ioThreadFactory("benchmark-server-"));
+
+		final Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						final Socket socket = server.accept();
+						handlers.execute(new Runnable() {
+							@Override
+							public void run() {
+								respond(socket, latency);
+							}
+						});
+					} catch (IOException e) {
+						// e.g., out of file descriptors: the pending clients wait in the backlog
+						if (!server.isClosed()) {
+							try {
+								Thread.sleep(10);
+							} catch (InterruptedException ie) {
+								break;
+							}
+						}
+					}
+				}
+				handlers.shutdownNow();
+			}
+		}, "benchmark-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Helper method to answer a request like the LikeLines server answers
+	 * postMCA: {"ok": "ok"}.
+	 */
+	private static void respond(Socket socket, int latency) {
+		try {
+			final InputStream in = socket.getInputStream();
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+			int contentLength = 0;
+			String line;
+			while ((line = reader.readLine()) != null && line.length() > 0)
+				if (line.toLowerCase(Locale.US).startsWith("content-length:"))
+					contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+			for (int i = 0; i < contentLength && reader.read() != -1; i++)
+				; // skip the request body
+
+			final int current = inFlight.incrementAndGet();
+			int peak;
+			while (current > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet(peak, current))
+				;
+			try {
+				Thread.sleep(latency);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+
+			final byte[] body = "{\"ok\": \"ok\"}".getBytes("US-ASCII");
+			final OutputStream out = socket.getOutputStream();
+			out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: "
+					+ body.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+			out.write(body);
+			out.flush();
+		} catch (Exception e) {
+			// client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package cubrikproject.tud.likelines.util;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks that the windowed {@link SmoothedFunction#applyOnGrid(double, double[], int, int)}
+ * and {@link SmoothedFunction#applyOnGridWindow(double, double[], int, int)}
+ * agree with the full sum of Gaussians over all points, including points at
+ * the first and last grid cells and at about the cut-off distance of a cell.
+ *
+ * Usage: java cubrikproject.tud.likelines.util.SmoothedFunctionCheck [numRandomFunctions]
+ */
+public class SmoothedFunctionCheck {
+
+	/** Maximum error, relative to the largest value on the grid */
+	private static final double TOLERANCE = 1e-12;
+
+	/** Cut-off distance (bandwidths) of the windowed methods */
+	private static final double CUTOFF = 39;
+
+	private static final double[] STEPS = { 0, 1e-3, 0.25, 1, 2.7, 38.6, 39, 50 };
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		final int numRandom = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		final int size = 425;
+
+		for (double step : STEPS) {
+			final double end = (size - 1) * step;
+
+			// points on the first and last grid cells, and just outside the grid
+			check("edges, step=" + step, new double[] { 0, end, -0.5, end + 0.5 }, null, step, size);
+
+			// points at about the cut-off distance before the first and beyond the last grid cell
+			final double[] nearCutoff = { -CUTOFF, -CUTOFF + 0.4, -CUTOFF - 0.4, -38.6, -38.5,
+					end + CUTOFF, end + CUTOFF - 0.4, end + CUTOFF + 0.4, end + 38.6, end + 38.5 };
+			check("near cut-off, step=" + step, nearCutoff, null, step, size);
+
+			// the same, each point alone, so its tail is not dwarfed by a nearby point
+			for (double point : nearCutoff)
+				check("single point " + point + ", step=" + step, new double[] { point }, null, step, size);
+
+			// points at about the cut-off distance of an inner grid cell
+			final double middle = (size / 2) * step;
+			check("inner cut-off, step=" + step, new double[] { middle + 38.5, middle - 38.6, middle + 38.9,
+					middle - CUTOFF, middle + CUTOFF + 1e-9 }, null, step, size);
+
+			// weighted points, as produced by a sketched aggregate
+			check("weighted edges, step=" + step, new double[] { 0, 0.125, end, end - 0.125 },
+					new double[] { 1, 1000, 3, 0 }, step, size);
+		}
+
+		final Random rnd = new Random(27);
+		for (int k = 0; k < numRandom; k++) {
+			final double step = (rnd.nextInt(4) == 0) ? STEPS[rnd.nextInt(STEPS.length)] : rnd.nextDouble() * 5;
+			final int n = 1 + rnd.nextInt(200);
+			final double[] points = new double[n];
+			final double end = (size - 1) * step;
+			for (int i = 0; i < n; i++) {
+				switch (rnd.nextInt(4)) {
+				case 0: points[i] = rnd.nextBoolean() ? 0 : end; break;
+				case 1: points[i] = (rnd.nextBoolean() ? -1 : end) + (rnd.nextBoolean() ? -1 : 1) * (CUTOFF + rnd.nextGaussian()); break;
+				default: points[i] = rnd.nextDouble() * end; break;
+				}
+			}
+			double[] weights = null;
+			if (rnd.nextBoolean()) {
+				weights = new double[n];
+				for (int i = 0; i < n; i++)
+					weights[i] = rnd.nextInt(50);
+			}
+			check("random #" + k, points, weights, step, size);
+		}
+
+		System.out.println((failures == 0) ? "OK" : failures + " failure(s)");
+		if (failures != 0)
+			System.exit(1);
+	}
+
+	private static void check(String name, double[] points, double[] weights, double step, int size) {
+		final SmoothedFunction f = (weights == null)
+				? new SmoothedFunction(points.clone())
+				: new SmoothedFunction(points.clone(), weights.clone());
+		final double[] expected = fullSum(points, weights, step, size);
+
+		final double[] grid = new double[size];
+		f.applyOnGrid(step, grid, size);
+		compare(name + " (applyOnGrid)", expected, grid, 0, size);
+
+		// subranges starting and ending at the edges and in between
+		final int[][] ranges = { { 0, 1 }, { size - 1, size }, { 0, size / 3 }, { size / 3, size } };
+		for (int[] range : ranges) {
+			final double[] window = new double[size];
+			f.applyOnGridWindow(step, window, range[0], range[1]);
+			compare(name + " (applyOnGridWindow " + range[0] + ".." + range[1] + ")", expected, window, range[0], range[1]);
+		}
+	}
+
+	/**
+	 * @return The sum of the Gaussians of all points at each grid cell,
+	 *         without cut-off
+	 */
+	private static double[] fullSum(double[] points, double[] weights, double step, int size) {
+		double total = 0;
+		for (int k = 0; k < points.length; k++)
+			total += (weights == null) ? 1 : weights[k];
+
+		final double[] res = new double[size];
+		for (int i = 0; i < size; i++) {
+			double y = 0;
+			for (int k = 0; k < points.length; k++) {
+				final double x = i * step - points[k];
+				y += ((weights == null) ? 1 : weights[k]) * Math.exp(x * x / -2) / Math.sqrt(2 * Math.PI);
+			}
+			res[i] = (total > 0) ? y / total : y;
+		}
+		return res;
+	}
+
+	private static void compare(String name, double[] expected, double[] actual, int from, int to) {
+		double scale = 0;
+		for (int i = from; i < to; i++)
+			scale = Math.max(scale, Math.abs(expected[i]));
+
+		for (int i = from; i < to; i++) {
+			final double error = Math.abs(expected[i] - actual[i]);
+			if (error > TOLERANCE * scale || (scale == 0 && actual[i] != 0)) {
+				failures++;
+				System.out.println(String.format(Locale.US, "FAIL %s: cell %d expected %g, got %g",
+						name, i, expected[i], actual[i]));
+				return;
+			}
+		}
+	}
+}
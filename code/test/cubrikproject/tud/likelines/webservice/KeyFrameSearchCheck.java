@@ -0,0 +1,147 @@
+package cubrikproject.tud.likelines.webservice;
+
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Checks that {@link LikeLinesWebService#getNKeyFramesCoarseToFine(int, Aggregate)}
+ * yields the same time-codes as {@link LikeLinesWebService#getNKeyFrames(int, Aggregate)}
+ * on synthetic aggregates, including tied and plateau peaks.
+ *
+ * Usage: java cubrikproject.tud.likelines.webservice.KeyFrameSearchCheck [numRandomAggregates]
+ */
+public class KeyFrameSearchCheck {
+
+	private static LikeLinesWebService service;
+
+	private static int failures;
+
+	public static void main(String[] args) throws MalformedURLException {
+		service = new LikeLinesWebService("http://localhost/");
+		final int numRandom = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+		// three peaks tied at 0.9 below a peak of 1.0
+		final double[] tied = new double[2160];
+		tied[623] = 1;
+		tied[1005] = tied[1101] = tied[1983] = 0.9;
+		for (int n = 1; n <= 5; n++)
+			check("tied peaks, N=" + n, aggregate(new double[0], 2160, tied), n);
+
+		// plateaus: runs of equal bins, both tied with each other and with single peaks
+		final double[] plateaus = new double[3000];
+		Arrays.fill(plateaus, 100, 140, 0.7);
+		Arrays.fill(plateaus, 900, 901, 0.7);
+		Arrays.fill(plateaus, 1500, 1600, 0.7);
+		Arrays.fill(plateaus, 2500, 2508, 1.0);
+		Arrays.fill(plateaus, 2990, 3000, 0.7);
+		for (int n = 1; n <= 6; n++)
+			check("plateaus, N=" + n, aggregate(new double[0], 3000, plateaus), n);
+
+		// liked points on top of tied MCA peaks
+		final double[] likes = { 10, 10.5, 11, 1005, 1005.5, 1984, 1984.5, 2100 };
+		for (int n = 1; n <= 6; n++)
+			check("likes and tied peaks, N=" + n, aggregate(likes, 2160, tied), n);
+
+		// tied peaks on partially watched videos: a tie's confirming drop often lies beyond its block
+		final double[] levels = { 0.1, 0.3, 0.6, 0.7, 0.9, 1.0 };
+		final Random rnd = new Random(7);
+		final Random likesRnd = new Random(42);
+		for (int k = 0; k < numRandom; k++) {
+			final int duration = 200 + rnd.nextInt(3000);
+
+			final double[][] playbacks = new double[rnd.nextInt(3)][];
+			for (int p = 0; p < playbacks.length; p++) {
+				final int start = rnd.nextInt(duration);
+				playbacks[p] = new double[] { start, Math.min(duration, start + rnd.nextInt(duration)) };
+			}
+
+			final int length = rnd.nextBoolean() ? duration : 50 + rnd.nextInt(3000);
+			final int peaks = 1 + rnd.nextInt(8);
+			double[][] curves = new double[1][length];
+			for (int p = 0; p < peaks; p++)
+				curves[0][rnd.nextInt(length)] = levels[rnd.nextInt(levels.length)];
+			if (rnd.nextBoolean()) {
+				curves = new double[][] { curves[0], new double[length] };
+				for (int p = 0; p < peaks; p++)
+					curves[1][rnd.nextInt(length)] = levels[rnd.nextInt(levels.length)];
+			}
+
+			// likes in every third aggregate, drawn separately so the cases above stay put
+			final double[] likedPoints = new double[(k % 3 == 0) ? likesRnd.nextInt(100) : 0];
+			final double center = likesRnd.nextDouble() * duration;
+			for (int i = 0; i < likedPoints.length; i++)
+				likedPoints[i] = (likesRnd.nextBoolean())
+					? Math.max(0, Math.min(duration, center + likesRnd.nextGaussian() * 20))
+					: likesRnd.nextInt(duration);
+
+			check("random #" + k, aggregate(likedPoints, duration, playbacks, curves), 1 + rnd.nextInt(6));
+		}
+
+		System.out.println((failures == 0) ? "OK" : failures + " failure(s)");
+		if (failures != 0)
+			System.exit(1);
+	}
+
+	private static void check(String name, Aggregate aggregate, int n) {
+		final double[] expected = service.getNKeyFrames(n, aggregate);
+		final double[] actual = service.getNKeyFramesCoarseToFine(n, aggregate);
+		if (!Arrays.equals(expected, actual)) {
+			failures++;
+			System.out.println(String.format(Locale.US, "FAIL %s: expected %s, got %s",
+					name, Arrays.toString(expected), Arrays.toString(actual)));
+		}
+	}
+
+	/**
+	 * @return An aggregate with given likes, a single playback of the whole
+	 *         video, and an MCA curve (if not empty)
+	 */
+	private static Aggregate aggregate(double[] likedPoints, int duration, double[] curve) {
+		return aggregate(likedPoints, duration, new double[][] { { 0, duration } },
+				(curve.length > 0) ? new double[][] { curve } : new double[0][]);
+	}
+
+	/**
+	 * @return An aggregate with given likes, single-segment playbacks and
+	 *         MCA curves, and a duration point
+	 */
+	private static Aggregate aggregate(double[] likedPoints, int duration, double[][] playbacks, double[][] curves) {
+		final JsonObject json = new JsonObject();
+		json.add("likedPoints", toJson(likedPoints));
+
+		final JsonArray jsonPlaybacks = new JsonArray();
+		for (double[] segment : playbacks) {
+			final JsonArray playback = new JsonArray();
+			playback.add(toJson(segment));
+			jsonPlaybacks.add(playback);
+		}
+		json.add("playbacks", jsonPlaybacks);
+
+		final JsonObject mca = new JsonObject();
+		for (int k = 0; k < curves.length; k++) {
+			final JsonObject curve = new JsonObject();
+			curve.addProperty("type", "curve");
+			curve.add("data", toJson(curves[k]));
+			mca.add("curve" + k, curve);
+		}
+		final JsonObject durationPoint = new JsonObject();
+		durationPoint.addProperty("type", "point");
+		durationPoint.add("data", toJson(new double[] { duration }));
+		mca.add("duration", durationPoint);
+		json.add("mca", mca);
+		return new Aggregate(json);
+	}
+
+	private static JsonArray toJson(double[] values) {
+		final JsonArray res = new JsonArray();
+		for (double value : values)
+			res.add(new JsonPrimitive(value));
+		return res;
+	}
+}